@@ -33,11 +33,17 @@
 
 package org.irmacard.api.web;
 
+import org.glassfish.jersey.media.sse.SseFeature;
 import org.glassfish.jersey.server.ResourceConfig;
 import org.irmacard.api.common.ProtocolVersion;
 import org.irmacard.api.web.resources.IssueResource;
+import org.irmacard.api.web.resources.MetricsResource;
 import org.irmacard.api.web.resources.SignatureResource;
+import org.irmacard.api.web.resources.StatusResource;
 import org.irmacard.api.web.resources.VerificationResource;
+import org.irmacard.api.web.sessions.ResultJournal;
+import org.irmacard.api.web.sessions.SessionSnapshot;
+import org.irmacard.api.web.sessions.Sessions;
 import org.irmacard.credentials.idemix.info.IdemixKeyStore;
 import org.irmacard.credentials.idemix.info.IdemixKeyStoreDeserializer;
 import org.irmacard.credentials.info.DescriptionStore;
@@ -48,6 +54,7 @@ import org.slf4j.LoggerFactory;
 
 import javax.ws.rs.ApplicationPath;
 import javax.ws.rs.Path;
+import java.io.File;
 import java.net.URI;
 import java.nio.file.Paths;
 import java.util.concurrent.TimeUnit;
@@ -69,7 +76,9 @@ public class ApiApplication extends ResourceConfig {
         Class[] resources = {
                 IssueResource.class,
                 VerificationResource.class,
-                SignatureResource.class
+                SignatureResource.class,
+                MetricsResource.class,
+                StatusResource.class
         };
 
         for (Class resource : resources) {
@@ -83,11 +92,41 @@ public class ApiApplication extends ResourceConfig {
             }
         }
 
+        // register server-sent events support, for the status event streams
+        register(SseFeature.class);
+
         // register CORS filter
         register(CORSResponseFilter.class);
 
         ApiConfiguration conf = ApiConfiguration.getInstance();
+        conf.checkJwtConfiguration();
         loadOrUpdateIrmaConfiguration(true);
+        KeyCache.watch(ApiConfiguration.getConfigurationDirectory());
+
+        if ("offheap".equals(conf.session_store)) {
+            logger.info("Keeping idle sessions off-heap");
+            Sessions.useOffHeapStores();
+        }
+
+        // Restore the sessions that were in progress when we were shut down
+        File snapshot = conf.getSessionSnapshotFile();
+        if (snapshot != null) {
+            try {
+                SessionSnapshot.restore(snapshot);
+            } catch (Exception e) {
+                logger.error("Failed to restore sessions:", e);
+            }
+        }
+
+        // Restore the results that were not yet fetched or delivered when we stopped
+        File journal = conf.getResultJournalDir();
+        if (journal != null) {
+            try {
+                ResultJournal.open(journal, conf.getResultJournalSegmentSize());
+            } catch (Exception e) {
+                logger.error("Failed to open result journal:", e);
+            }
+        }
 
         if (conf.schemeManager_update_uri != null) {
             BackgroundJobManager.getScheduler().scheduleAtFixedRate(new Runnable() {
@@ -127,6 +166,8 @@ public class ApiApplication extends ResourceConfig {
             if (initial || updated) {
                 DescriptionStore.initialize(new DescriptionStoreDeserializer(CORE_LOCATION));
                 IdemixKeyStore.initialize(new IdemixKeyStoreDeserializer(CORE_LOCATION));
+                KeyCache.invalidate(); // The keyshare server keys may have changed
+                RequestTemplates.clear(); // They were validated against the old stores, clients register them again
             }
         } catch (Exception e) {
             logger.error("Store initialization failed:", e);
@@ -5,8 +5,11 @@ import io.jsonwebtoken.SignatureAlgorithm;
 import org.apache.commons.codec.binary.Base64;
 import org.irmacard.api.web.resources.BaseResource;
 import org.irmacard.api.web.resources.IssueResource;
+import org.irmacard.api.web.resources.MetricsResource;
 import org.irmacard.api.web.resources.SignatureResource;
+import org.irmacard.api.web.resources.StatusResource;
 import org.irmacard.api.web.resources.VerificationResource;
+import org.irmacard.api.web.sessions.JwtReplayCache;
 import org.irmacard.credentials.info.AttributeIdentifier;
 import org.irmacard.credentials.info.CredentialIdentifier;
 import org.irmacard.credentials.info.SchemeManager;
@@ -16,10 +19,19 @@ import org.slf4j.LoggerFactory;
 import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Response;
+import java.io.File;
 import java.io.IOException;
+import java.security.Key;
+import java.security.KeyFactory;
 import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.security.interfaces.ECKey;
+import java.security.interfaces.RSAKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
 import java.util.ArrayList;
 import java.util.HashMap;
 
@@ -43,6 +55,7 @@ public class ApiConfiguration extends BaseConfiguration<ApiConfiguration> {
 	public String jwt_publickey = "pk.der";
 	public String schemeManager_publickey = "schemeManager.pk.pem";
 	public String jwt_issuer = null;
+	public String jwt_algorithm = "RS256";
 
     public String client_ip_header = null;
 
@@ -57,9 +70,15 @@ public class ApiConfiguration extends BaseConfiguration<ApiConfiguration> {
 	public boolean allow_unsigned_signature_requests = false;
 
 	public int max_jwt_age = 60;
+	public String jwt_replay_mode = "allow";
+	public int jwt_replay_cache_size = 100000;
+	public int max_batch_size = 100;
+	public int max_templates = 1000;
+	public int template_ttl = 24 * 60 * 60;
 	public int token_response_timeout = 10 * 60;
 	public int token_get_timeout = 2 * 60;
 	public int client_get_timeout = 2 * 60;
+	public int max_status_wait = 60;
 
 	public HashMap<String, ArrayList<String>> authorized_idps = new HashMap<>();
 	public HashMap<String, ArrayList<String>> authorized_sps = new HashMap<>();
@@ -72,9 +91,44 @@ public class ApiConfiguration extends BaseConfiguration<ApiConfiguration> {
 
 	public String schemeManager_update_uri = null;
 
+	public boolean enable_metrics = false;
+	public boolean enable_status_events = false;
+
+	public String session_store = "heap";
+	public String session_snapshot_file = null;
+
+	public int max_sessions = 0;
+	public int max_sessions_per_client = 0;
+	public HashMap<String, Integer> client_session_limits = new HashMap<>();
+	public int session_limit_retry_after = 5;
+
+	public int crypto_threads = 0;
+	public int crypto_queue_size = 256;
+	public int batch_threads = 0;
+
+	public int callback_threads = 4;
+	public int callback_queue_size = 1000;
+	public int callback_max_per_host = 4;
+	public int callback_max_attempts = 5;
+	public int callback_retry_delay = 1;
+	public int callback_timeout = 10;
+
+	public int status_threads = 4;
+	public int status_send_threads = 16;
+	public int status_write_timeout = 10;
+
+	public String result_journal_dir = null;
+	public int result_journal_segment_mb = 16;
+
 	/* Transient members for convenience */
 	private transient PrivateKey jwtPrivateKey;
 	private transient PublicKey jwtPublicKey;
+	private transient SignatureAlgorithm jwtAlgorithm;
+
+	/* Compiled from the authorized_* maps on first use; see AuthorizationIndex */
+	private transient volatile AuthorizationIndex spIndex;
+	private transient volatile AuthorizationIndex sigclientIndex;
+	private transient volatile AuthorizationIndex idpIndex;
 
 	public ApiConfiguration() {}
 
@@ -82,73 +136,137 @@ public class ApiConfiguration extends BaseConfiguration<ApiConfiguration> {
 		return (ApiConfiguration) BaseConfiguration.getInstance();
 	}
 
+	/**
+	 * @return The algorithm with which we sign result JWTs; RSA (RS*, PS*) or ECDSA (ES*)
+	 */
 	public SignatureAlgorithm getJwtAlgorithm() {
-		return SignatureAlgorithm.RS256;
+		if (jwtAlgorithm == null) {
+			SignatureAlgorithm algorithm = SignatureAlgorithm.forName(jwt_algorithm);
+			if (!algorithm.isRsa() && !algorithm.isEllipticCurve())
+				throw new IllegalArgumentException("Unsupported jwt_algorithm " + jwt_algorithm);
+			jwtAlgorithm = algorithm;
+		}
+		return jwtAlgorithm;
+	}
+
+	/**
+	 * Check that jwt_algorithm is supported and that the JWT keys are of the right type for it (and,
+	 * for ECDSA, on the right curve), so that a misconfiguration is noticed when the server starts
+	 * instead of when it first signs a result.
+	 * @throws IllegalStateException If not
+	 */
+	public void checkJwtConfiguration() {
+		SignatureAlgorithm algorithm;
+		try {
+			algorithm = getJwtAlgorithm();
+		} catch (RuntimeException e) {
+			throw new IllegalStateException("Unsupported jwt_algorithm " + jwt_algorithm, e);
+		}
+
+		try {
+			checkJwtKey(algorithm, getJwtPrivateKey(), "private");
+		} catch (KeyManagementException e) {
+			throw new IllegalStateException("Cannot load JWT private key", e);
+		}
+		try {
+			checkJwtKey(algorithm, getJwtPublicKey(), "public");
+		} catch (KeyManagementException e) {
+			logger.warn("Cannot load JWT public key", e); // We only sign with the private key
+		}
+	}
+
+	private static void checkJwtKey(SignatureAlgorithm algorithm, Key key, String kind) {
+		if (algorithm.isRsa()) {
+			if (!(key instanceof RSAKey))
+				throw new IllegalStateException("JWT " + kind + " key is not an RSA key, as " + algorithm + " requires");
+			return;
+		}
+
+		if (!(key instanceof ECKey))
+			throw new IllegalStateException("JWT " + kind + " key is not an EC key, as " + algorithm + " requires");
+		int expected;
+		switch (algorithm) {
+			case ES256: expected = 256; break;
+			case ES384: expected = 384; break;
+			default: expected = 521; break;
+		}
+		int size = ((ECKey) key).getParams().getCurve().getField().getFieldSize();
+		if (size != expected)
+			throw new IllegalStateException("JWT " + kind + " key is on a " + size + " bit curve, but "
+					+ algorithm + " requires " + expected + " bits");
 	}
 
 	public boolean isEnabled(Class clazz) {
 		if (clazz == IssueResource.class) return enable_issuing;
 		if (clazz == VerificationResource.class) return enable_verification;
 		if (clazz == SignatureResource.class) return enable_signing;
+		if (clazz == MetricsResource.class) return enable_metrics;
+		if (clazz == StatusResource.class) return enable_status_events;
 
 		throw new IllegalArgumentException("Unknown resource " + clazz.getName());
 	}
 
 	public boolean canRequestSignatureWithAttribute(String sigclient, AttributeIdentifier attribute) {
-		return canRequestAttribute(sigclient, attribute, authorized_sigclients);
+		if (sigclientIndex == null)
+			sigclientIndex = new AuthorizationIndex(authorized_sigclients, true);
+		return sigclientIndex.permits(sigclient, attribute.toString(), AuthorizationIndex.ATTRIBUTE_WILDCARD_DEPTH);
 	}
 
 	public boolean canVerifyAttribute(String sp, AttributeIdentifier attribute) {
-		return canRequestAttribute(sp, attribute, authorized_sps);
+		if (spIndex == null)
+			spIndex = new AuthorizationIndex(authorized_sps, true);
+		return spIndex.permits(sp, attribute.toString(), AuthorizationIndex.ATTRIBUTE_WILDCARD_DEPTH);
 	}
 
-	private boolean canRequestAttribute(String client, AttributeIdentifier attribute,
-	                                    HashMap<String, ArrayList<String>> authorizedClients) {
-		if (!authorizedClients.containsKey(client)) {
-			// If requested wildcard, and not present, return false
-			if (client.equals("*"))
-				return false;
-
-			// Try again with wildcard if we haven't tried that yet
-			return canRequestAttribute("*", attribute, authorizedClients);
-		}
+	public boolean canIssueCredential(String idp, CredentialIdentifier credential) {
+		if (idpIndex == null)
+			idpIndex = new AuthorizationIndex(authorized_idps, false);
+		return idpIndex.permits(idp, credential.toString(), AuthorizationIndex.CREDENTIAL_WILDCARD_DEPTH);
+	}
 
-		ArrayList<String> attributes = authorizedClients.get(client);
+	public boolean shouldRejectUnflooredTimestamps() {
+		return reject_unfloored_validity_timestamps;
+	}
 
-		// This SP can verify anything
-		return attributes.contains("*")
-				// This SP can verify everything from this scheme manager
-				|| attributes.contains(attribute.getSchemeManagerName() + ".*")
-				// This SP can verify any credential from the specified issuer
-				|| attributes.contains(attribute.getIssuerIdentifier() + ".*")
-				// This SP can verify any attribute from the specified credential
-				|| attributes.contains(attribute.getCredentialIdentifier() + ".*")
-				// The attribute is explicitly listed
-				|| attributes.contains(attribute.toString());
+	public int getMaxJwtAge() {
+		return max_jwt_age * 1000;
 	}
 
-	public boolean canIssueCredential(String idp, CredentialIdentifier credential) {
-		if (!authorized_idps.containsKey(idp))
-			return false;
+	/**
+	 * @return What to do with signed session request JWTs that were already used within max_jwt_age
+	 */
+	public JwtReplayCache.Mode getJwtReplayMode() {
+		if (jwt_replay_mode == null)
+			return JwtReplayCache.Mode.ALLOW;
+		return JwtReplayCache.Mode.valueOf(jwt_replay_mode.toUpperCase());
+	}
 
-		ArrayList<String> credentials = authorized_idps.get(idp);
+	/**
+	 * @return The maximum number of session request JWTs that are remembered for jwt_replay_mode
+	 */
+	public int getJwtReplayCacheSize() {
+		return jwt_replay_cache_size;
+	}
 
-		// This IDP can issue everything
-		return credentials.contains("*")
-				// This IDP can issue everything from this scheme manager
-				|| credentials.contains(credential.getSchemeManagerName() + ".*")
-				// This IDP can issue everything from the specified issuer
-				|| credentials.contains(credential.getIssuerIdentifier() + ".*")
-				// The credential is explicitly listed
-				|| credentials.contains(credential.toString());
+	/**
+	 * @return The maximum number of session requests in a single batch
+	 */
+	public int getMaxBatchSize() {
+		return max_batch_size;
 	}
 
-	public boolean shouldRejectUnflooredTimestamps() {
-		return reject_unfloored_validity_timestamps;
+	/**
+	 * @return The maximum number of session request templates that each client may have registered
+	 */
+	public int getMaxTemplates() {
+		return max_templates;
 	}
 
-	public int getMaxJwtAge() {
-		return max_jwt_age * 1000;
+	/**
+	 * @return The time (in seconds) after which a session request template expires
+	 */
+	public int getTemplateTtl() {
+		return template_ttl;
 	}
 
 	public boolean allowUnsignedIssueRequests() {
@@ -185,6 +303,13 @@ public class ApiConfiguration extends BaseConfiguration<ApiConfiguration> {
 		return client_get_timeout;
 	}
 
+	/**
+	 * @return The maximum number of seconds that a status request with ?wait=N is parked
+	 */
+	public int getMaxStatusWait() {
+		return max_status_wait;
+	}
+
 	public String getClientName(String kid) {
 		String name = client_names.get(kid);
 		if (name == null || name.length() == 0)
@@ -193,13 +318,17 @@ public class ApiConfiguration extends BaseConfiguration<ApiConfiguration> {
 			return name;
 	}
 
-	public PublicKey getClientPublicKey(String path, String name) {
-		byte[] env = getBase64ResourceByEnv("BASE64_JWT_" + path + "_" + name);
+	public PublicKey getClientPublicKey(final String path, final String name) {
 		try {
-			if (env != null) {
-				return decodePublicKey(env);
-			}
-			return getPublicKey(path + "/" + name + ".der");
+			return KeyCache.get(path + "/" + name, new KeyCache.Loader() {
+				@Override public PublicKey load() throws KeyManagementException {
+					byte[] env = getBase64ResourceByEnv("BASE64_JWT_" + path + "_" + name);
+					if (env != null) {
+						return decodePublicKey(env);
+					}
+					return getPublicKey(path + "/" + name + ".der");
+				}
+			});
 		} catch (KeyManagementException e) {
 			throw new WebApplicationException("No public key for identity provider " + name,
 					Response.Status.UNAUTHORIZED);
@@ -224,9 +353,14 @@ public class ApiConfiguration extends BaseConfiguration<ApiConfiguration> {
 	}
 
 	public PublicKey getKssPublicKey(String schemeManager, String kid) {
+		// This should really be done by irma_api_common
+		final String path = String.format("irma_configuration/%s/kss-%s.pem", schemeManager, kid);
 		try {
-			// This should really be done by irma_api_common
-			return getPublicKey(String.format("irma_configuration/%s/kss-%s.pem", schemeManager, kid));
+			return KeyCache.get(path, new KeyCache.Loader() {
+				@Override public PublicKey load() throws KeyManagementException {
+					return getPublicKey(path);
+				}
+			});
 		} catch (KeyManagementException e) {
 			throw new RuntimeException(e);
 		}
@@ -235,7 +369,9 @@ public class ApiConfiguration extends BaseConfiguration<ApiConfiguration> {
 	public PublicKey getJwtPublicKey() throws KeyManagementException {
 		if (jwtPublicKey == null) {
 			byte[] env = getBase64ResourceByEnv("BASE64_JWT_PUBLICKEY");
-			if (env != null) {
+			if (getJwtAlgorithm().isEllipticCurve()) {
+				jwtPublicKey = (PublicKey) decodeEcKey(env != null ? env : getJwtKeyFile(jwt_publickey), false);
+			} else if (env != null) {
 				jwtPublicKey = decodePublicKey(env);
 			} else {
 				jwtPublicKey = getPublicKey(jwt_publickey);
@@ -248,7 +384,9 @@ public class ApiConfiguration extends BaseConfiguration<ApiConfiguration> {
 	public PrivateKey getJwtPrivateKey() throws KeyManagementException {
 		if (jwtPrivateKey == null) {
 			byte[] env = getBase64ResourceByEnv("BASE64_JWT_PRIVATEKEY");
-			if (env != null) {
+			if (getJwtAlgorithm().isEllipticCurve()) {
+				jwtPrivateKey = (PrivateKey) decodeEcKey(env != null ? env : getJwtKeyFile(jwt_privatekey), true);
+			} else if (env != null) {
 				jwtPrivateKey = decodePrivateKey(env);
 			} else {
 				jwtPrivateKey = getPrivateKey(jwt_privatekey);
@@ -258,10 +396,184 @@ public class ApiConfiguration extends BaseConfiguration<ApiConfiguration> {
 		return jwtPrivateKey;
 	}
 
+	private static byte[] getJwtKeyFile(String name) throws KeyManagementException {
+		try {
+			return getResource(name);
+		} catch (IOException e) {
+			throw new KeyManagementException(e);
+		}
+	}
+
+	/**
+	 * Decode a DER-encoded elliptic curve key: PKCS#8 for private keys, X.509 for public keys.
+	 * (The key decoding of BaseConfiguration only handles RSA keys.)
+	 */
+	private static Key decodeEcKey(byte[] bytes, boolean isPrivate) throws KeyManagementException {
+		try {
+			KeyFactory factory = KeyFactory.getInstance("EC");
+			if (isPrivate)
+				return factory.generatePrivate(new PKCS8EncodedKeySpec(bytes));
+			else
+				return factory.generatePublic(new X509EncodedKeySpec(bytes));
+		} catch (NoSuchAlgorithmException|InvalidKeySpecException e) {
+			throw new KeyManagementException(e);
+		}
+	}
+
 	public String getJwtIssuer() {
 		return jwt_issuer;
 	}
 
+	/**
+	 * @return The file to which sessions are saved on shutdown, or null if this is disabled.
+	 * Relative paths are resolved against the configuration directory.
+	 */
+	public File getSessionSnapshotFile() {
+		if (session_snapshot_file == null || session_snapshot_file.length() == 0)
+			return null;
+
+		File file = new File(session_snapshot_file);
+		if (file.isAbsolute())
+			return file;
+		return new File(getConfigurationDirectory().resolve(session_snapshot_file));
+	}
+
+	/**
+	 * @return The directory of the journal in which finished sessions and pending callbacks are kept
+	 * until they are fetched or delivered, or null if this is disabled. Relative paths are resolved
+	 * against the configuration directory.
+	 */
+	public File getResultJournalDir() {
+		if (result_journal_dir == null || result_journal_dir.length() == 0)
+			return null;
+
+		File dir = new File(result_journal_dir);
+		if (dir.isAbsolute())
+			return dir;
+		return new File(getConfigurationDirectory().resolve(result_journal_dir));
+	}
+
+	/**
+	 * @return The size of the segment files of the result journal in bytes
+	 */
+	public int getResultJournalSegmentSize() {
+		return Math.max(result_journal_segment_mb, 1) * 1024 * 1024;
+	}
+
+	/**
+	 * @return The maximum number of concurrent sessions, or 0 if unlimited
+	 */
+	public int getMaxSessions() {
+		return max_sessions;
+	}
+
+	/**
+	 * @return The maximum number of concurrent sessions that the specified client (i.e., JWT key
+	 * identifier) may have, or 0 if unlimited
+	 */
+	public int getMaxSessions(String client) {
+		Integer limit = client_session_limits.get(client);
+		if (limit != null)
+			return limit;
+		return max_sessions_per_client;
+	}
+
+	/**
+	 * @return The number of seconds after which clients that hit a session limit may try again
+	 */
+	public int getSessionLimitRetryAfter() {
+		return session_limit_retry_after;
+	}
+
+	/**
+	 * @return The number of threads that do the cryptographic work of sessions; by default one per core
+	 */
+	public int getCryptoThreads() {
+		if (crypto_threads <= 0)
+			return Runtime.getRuntime().availableProcessors();
+		return crypto_threads;
+	}
+
+	/**
+	 * @return The maximum number of cryptographic tasks waiting for a thread, beyond which requests
+	 * that need such work are refused
+	 */
+	public int getCryptoQueueSize() {
+		return Math.max(crypto_queue_size, 1);
+	}
+
+	/**
+	 * @return The number of threads that verify the JWTs of batches of session requests; by default
+	 * half of the crypto threads
+	 */
+	public int getBatchThreads() {
+		if (batch_threads <= 0)
+			return Math.max(getCryptoThreads() / 2, 1);
+		return batch_threads;
+	}
+
+	/**
+	 * @return The number of threads that post session results to callback URLs
+	 */
+	public int getCallbackThreads() {
+		return Math.max(callback_threads, 1);
+	}
+
+	/**
+	 * @return The maximum number of callbacks that may be pending (being delivered or awaiting a retry)
+	 */
+	public int getCallbackQueueSize() {
+		return Math.max(callback_queue_size, 1);
+	}
+
+	/**
+	 * @return The maximum number of callbacks that are delivered to a single host at the same time
+	 */
+	public int getCallbackMaxPerHost() {
+		return Math.max(callback_max_per_host, 1);
+	}
+
+	/**
+	 * @return How often the delivery of a callback is attempted before giving up
+	 */
+	public int getCallbackMaxAttempts() {
+		return Math.max(callback_max_attempts, 1);
+	}
+
+	/**
+	 * @return The number of seconds before the first retry of a failed callback
+	 */
+	public int getCallbackRetryDelay() {
+		return Math.max(callback_retry_delay, 1);
+	}
+
+	/**
+	 * @return The connect and read timeout for callbacks in seconds
+	 */
+	public int getCallbackTimeout() {
+		return Math.max(callback_timeout, 1);
+	}
+
+	/**
+	 * @return The number of threads that deliver status updates to the listeners of sessions
+	 */
+	public int getStatusThreads() {
+		return Math.max(status_threads, 1);
+	}
+
+	/**
+	 * @return The number of threads that send status updates to websockets and event streams
+	 */
+	public int getStatusSendThreads() {
+		return Math.max(status_send_threads, 1);
+	}
+
+	/**
+	 * @return The number of seconds after which a blocked send of a status update is aborted
+	 */
+	public int getStatusWriteTimeout() {
+		return Math.max(status_write_timeout, 1);
+	}
 
 	public static byte[] getBase64ResourceByEnv(String envName) {
 		String env = System.getenv(environmentVarPrefix + envName.toUpperCase());
@@ -12,6 +12,13 @@ import javax.ws.rs.ext.ExceptionMapper;
 public class ApiExceptionMapper implements ExceptionMapper<Throwable> {
 	@Override
 	public Response toResponse(Throwable ex) {
+		if (ex instanceof SessionLimitException)
+			return ((SessionLimitException) ex).getResponse();
+		if (ex instanceof ServerBusyException)
+			return ((ServerBusyException) ex).getResponse();
+		if (ex instanceof SessionConflictException)
+			return ((SessionConflictException) ex).getResponse();
+
 		ApiErrorMessage message = new ApiErrorMessage(ex);
 
 		return Response.status(message.getStatus())
@@ -0,0 +1,136 @@
+package org.irmacard.api.web;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The authorized_sps, authorized_sigclients or authorized_idps from the configuration, compiled into a
+ * tree per client whose levels are the parts of the identifiers (scheme manager, issuer, credential,
+ * attribute). A node is marked if the identifier it represents is listed explicitly, and it is marked
+ * as wildcard if everything below it is listed (i.e., "identifier.*"). Checking an identifier walks
+ * down its parts without allocating anything.
+ */
+class AuthorizationIndex {
+	/** Depth of the deepest node whose wildcard applies to attributes: root, scheme, issuer, credential */
+	static final int ATTRIBUTE_WILDCARD_DEPTH = 3;
+	/** Depth of the deepest node whose wildcard applies to credentials: root, scheme, issuer */
+	static final int CREDENTIAL_WILDCARD_DEPTH = 2;
+
+	private static final String WILDCARD = "*";
+
+	private static class Node {
+		private String[] names = new String[0];
+		private Node[] children = new Node[0];
+		private boolean exact;
+		private boolean all;
+
+		private Node child(String id, int start, int end) {
+			int length = end - start;
+			for (int i = 0; i < names.length; i++)
+				if (names[i].length() == length && id.regionMatches(start, names[i], 0, length))
+					return children[i];
+			return null;
+		}
+
+		private Node addChild(String name) {
+			Node child = child(name, 0, name.length());
+			if (child != null)
+				return child;
+
+			int count = names.length;
+			String[] newNames = new String[count + 1];
+			Node[] newChildren = new Node[count + 1];
+			System.arraycopy(names, 0, newNames, 0, count);
+			System.arraycopy(children, 0, newChildren, 0, count);
+			newNames[count] = name;
+			newChildren[count] = child = new Node();
+			names = newNames;
+			children = newChildren;
+			return child;
+		}
+	}
+
+	private final HashMap<String, Node> clients = new HashMap<>();
+	private final boolean wildcardClientFallback;
+
+	/**
+	 * @param authorizations Per client the list of identifiers it is authorized for
+	 * @param wildcardClientFallback Whether clients that are not listed get the authorizations of client "*"
+	 */
+	AuthorizationIndex(Map<String, ? extends List<String>> authorizations, boolean wildcardClientFallback) {
+		this.wildcardClientFallback = wildcardClientFallback;
+		if (authorizations == null)
+			return;
+
+		for (Map.Entry<String, ? extends List<String>> entry : authorizations.entrySet()) {
+			Node root = new Node();
+			if (entry.getValue() != null)
+				for (String identifier : entry.getValue())
+					add(root, identifier);
+			clients.put(entry.getKey(), root);
+		}
+	}
+
+	private static void add(Node root, String identifier) {
+		Node node = root;
+		ArrayList<String> parts = split(identifier);
+		boolean wildcard = parts.get(parts.size() - 1).equals(WILDCARD);
+		int depth = wildcard ? parts.size() - 1 : parts.size();
+
+		for (int i = 0; i < depth; i++)
+			node = node.addChild(parts.get(i));
+
+		if (wildcard)
+			node.all = true;
+		else
+			node.exact = true;
+	}
+
+	private static ArrayList<String> split(String identifier) {
+		ArrayList<String> parts = new ArrayList<>(4);
+		int start = 0;
+		int end;
+		while ((end = identifier.indexOf('.', start)) >= 0) {
+			parts.add(identifier.substring(start, end));
+			start = end + 1;
+		}
+		parts.add(identifier.substring(start));
+		return parts;
+	}
+
+	/**
+	 * Check whether the client is authorized for the specified identifier, either because the identifier
+	 * is listed or because a wildcard at one of its ancestors up to the specified depth is listed.
+	 */
+	boolean permits(String client, String identifier, int wildcardDepth) {
+		Node root = clients.get(client);
+		if (root == null) {
+			if (!wildcardClientFallback || client.equals(WILDCARD))
+				return false;
+			root = clients.get(WILDCARD);
+			if (root == null)
+				return false;
+		}
+
+		Node node = root;
+		int depth = 0;
+		int start = 0;
+		while (true) {
+			if (node.all && depth <= wildcardDepth)
+				return true;
+			if (start > identifier.length())
+				return node.exact;
+
+			int end = identifier.indexOf('.', start);
+			if (end < 0)
+				end = identifier.length();
+			node = node.child(identifier, start, end);
+			if (node == null)
+				return false;
+			depth++;
+			start = end + 1;
+		}
+	}
+}
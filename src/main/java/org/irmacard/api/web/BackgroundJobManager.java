@@ -1,11 +1,18 @@
 package org.irmacard.api.web;
 
+import org.irmacard.api.web.sessions.ResultJournal;
+import org.irmacard.api.web.sessions.SessionExpiry;
+import org.irmacard.api.web.sessions.SessionSnapshot;
+import org.irmacard.api.web.sessions.StatusMailbox;
+import org.irmacard.api.web.sessions.StatusSender;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
 import javax.servlet.annotation.WebListener;
+import java.io.File;
+import java.io.IOException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -33,5 +40,22 @@ public class BackgroundJobManager implements ServletContextListener {
 	@Override
 	public void contextDestroyed(ServletContextEvent event) {
 		getScheduler().shutdownNow();
+		SessionExpiry.shutdown();
+		KeyCache.shutdown();
+		CryptoExecutor.shutdown();
+		ResultJournal.close();
+		CallbackDispatcher.shutdown();
+		StatusMailbox.shutdown();
+		StatusSender.shutdown();
+
+		// Save the sessions that are in progress, so that they survive a redeploy
+		File snapshot = ApiConfiguration.getInstance().getSessionSnapshotFile();
+		if (snapshot != null) {
+			try {
+				SessionSnapshot.write(snapshot);
+			} catch (IOException e) {
+				logger.error("Failed to save sessions", e);
+			}
+		}
 	}
 }
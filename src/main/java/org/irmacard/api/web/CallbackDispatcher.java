@@ -0,0 +1,309 @@
+package org.irmacard.api.web;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Posts session results to the callback URLs of service providers. Callbacks are delivered by a small
+ * pool of threads over a shared HTTP client that keeps connections to each host alive. At most
+ * callback_max_per_host callbacks are delivered to the same host at once, so that a slow service
+ * provider cannot occupy all threads; further callbacks to that host wait, without occupying a
+ * thread, until one of its deliveries finishes. Failed deliveries (connection errors, 5xx and 429
+ * responses) are retried with exponential backoff and jitter, up to callback_max_attempts times. At most
+ * callback_queue_size callbacks can be pending; beyond that, new callbacks are dropped.
+ */
+public class CallbackDispatcher {
+	private static Logger logger = LoggerFactory.getLogger(CallbackDispatcher.class);
+
+	private static final long MAX_RETRY_DELAY = 60 * 1000;
+
+	private static volatile CallbackDispatcher instance;
+
+	private final ScheduledThreadPoolExecutor executor;
+	private final PoolingHttpClientConnectionManager connections;
+	private final CloseableHttpClient client;
+	/** The deliveries in progress and waiting per host; idle hosts are removed */
+	private final HashMap<String, Host> hosts = new HashMap<>();
+	private final AtomicInteger pending = new AtomicInteger();
+
+	private final int queueSize;
+	private final int maxPerHost;
+	private final int maxAttempts;
+	private final long retryDelay;
+
+	static {
+		Metrics.gauge("callbacks.pending", new Metrics.Gauge() {
+			@Override public long get() {
+				CallbackDispatcher current = instance;
+				return current == null ? 0 : current.pending.get();
+			}
+		});
+	}
+
+	/**
+	 * @param threads Number of threads delivering callbacks
+	 * @param queueSize Maximum number of callbacks that are being delivered or waiting to be (re)tried
+	 * @param maxPerHost Maximum number of concurrent deliveries to a single host
+	 * @param maxAttempts Maximum number of delivery attempts per callback
+	 * @param retryDelay Delay before the first retry in milliseconds; it doubles with each further retry
+	 * @param timeout Connect and read timeout in milliseconds
+	 */
+	CallbackDispatcher(int threads, int queueSize, int maxPerHost, int maxAttempts, long retryDelay, int timeout) {
+		this.queueSize = queueSize;
+		this.maxPerHost = maxPerHost;
+		this.maxAttempts = maxAttempts;
+		this.retryDelay = retryDelay;
+
+		executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			@Override public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "callback-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		connections = new PoolingHttpClientConnectionManager(60, TimeUnit.SECONDS);
+		connections.setMaxTotal(threads);
+		connections.setDefaultMaxPerRoute(maxPerHost);
+		client = HttpClients.custom()
+				.setConnectionManager(connections)
+				.setDefaultRequestConfig(RequestConfig.custom()
+						.setConnectTimeout(timeout)
+						.setSocketTimeout(timeout)
+						.setConnectionRequestTimeout(timeout)
+						.build())
+				.disableAutomaticRetries() // We retry ourselves, with backoff
+				.evictIdleConnections(30, TimeUnit.SECONDS)
+				.build();
+	}
+
+	public static CallbackDispatcher getInstance() {
+		if (instance == null) {
+			synchronized (CallbackDispatcher.class) {
+				if (instance == null) {
+					ApiConfiguration conf = ApiConfiguration.getInstance();
+					instance = new CallbackDispatcher(conf.getCallbackThreads(), conf.getCallbackQueueSize(),
+							conf.getCallbackMaxPerHost(), conf.getCallbackMaxAttempts(),
+							conf.getCallbackRetryDelay() * 1000L, conf.getCallbackTimeout() * 1000);
+				}
+			}
+		}
+		return instance;
+	}
+
+	public static synchronized void shutdown() {
+		if (instance != null)
+			instance.close();
+		instance = null;
+	}
+
+	void close() {
+		executor.shutdownNow();
+		try {
+			client.close();
+		} catch (IOException e) {
+			logger.warn("Failed to close callback HTTP client", e);
+		}
+	}
+
+	/**
+	 * Post the specified JWT to the specified URL in the background.
+	 * @return false if the callback was dropped because too many callbacks are pending
+	 */
+	public boolean dispatch(URL url, String jwt) {
+		return dispatch(url, jwt, null);
+	}
+
+	/**
+	 * Post the specified JWT to the specified URL in the background.
+	 * @param done Run once the callback was delivered or given up on, if it was not dropped
+	 * @return false if the callback was dropped because too many callbacks are pending
+	 */
+	public boolean dispatch(URL url, String jwt, Runnable done) {
+		if (pending.incrementAndGet() > queueSize) {
+			pending.decrementAndGet();
+			Metrics.increment("callbacks.rejected");
+			logger.error("Too many pending callbacks, dropping callback to {}", url);
+			return false;
+		}
+
+		Metrics.increment("callbacks.dispatched");
+		schedule(new Delivery(url, jwt, done), 0);
+		return true;
+	}
+
+	int getPending() {
+		return pending.get();
+	}
+
+	private void schedule(Delivery delivery, long delay) {
+		try {
+			executor.schedule(delivery, delay, TimeUnit.MILLISECONDS);
+		} catch (RuntimeException e) { // Shut down
+			pending.decrementAndGet();
+		}
+	}
+
+	private static class Host {
+		private int busy;
+		private final ArrayDeque<Delivery> waiting = new ArrayDeque<>();
+	}
+
+	/**
+	 * Start a delivery to its host, unless maxPerHost deliveries to it are already in progress, in
+	 * which case the delivery waits until {@link #release(Delivery)} hands it a slot.
+	 * @return false if the host is busy
+	 */
+	private boolean acquire(Delivery delivery) {
+		synchronized (hosts) {
+			Host host = hosts.get(delivery.host);
+			if (host == null) {
+				host = new Host();
+				hosts.put(delivery.host, host);
+			}
+			if (host.busy >= maxPerHost) {
+				host.waiting.add(delivery);
+				return false;
+			}
+			host.busy++;
+			return true;
+		}
+	}
+
+	/**
+	 * Finish a delivery to its host, and pass its slot on to the next delivery waiting for that host.
+	 */
+	private void release(Delivery delivery) {
+		Delivery next;
+		synchronized (hosts) {
+			Host host = hosts.get(delivery.host);
+			next = host.waiting.poll();
+			if (next == null && --host.busy == 0)
+				hosts.remove(delivery.host);
+		}
+		if (next != null) {
+			next.acquired = true;
+			schedule(next, 0);
+		}
+	}
+
+	int getBusyHosts() {
+		synchronized (hosts) {
+			return hosts.size();
+		}
+	}
+
+	/**
+	 * Delay before the specified retry: exponentially increasing, of which a random half is taken
+	 * off so that callbacks that failed at the same time are not all retried at the same time.
+	 */
+	private long backoff(int retry) {
+		long delay = Math.min(retryDelay << Math.min(retry - 1, 20), MAX_RETRY_DELAY);
+		return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+	}
+
+	private class Delivery implements Runnable {
+		private final URL url;
+		private final String host;
+		private final String jwt;
+		private final Runnable done;
+		private final long createdAt = System.currentTimeMillis();
+		private int attempts = 0;
+		/** Whether a finishing delivery already handed its slot for the host to this one */
+		private volatile boolean acquired = false;
+
+		Delivery(URL url, String jwt, Runnable done) {
+			this.url = url;
+			this.host = url.getAuthority();
+			this.jwt = jwt;
+			this.done = done;
+		}
+
+		@Override
+		public void run() {
+			if (!acquired && !acquire(this)) {
+				Metrics.increment("callbacks.host_busy");
+				return;
+			}
+			acquired = false;
+
+			int status;
+			attempts++;
+			try {
+				status = post();
+			} finally {
+				release(this);
+			}
+
+			if (status >= 200 && status < 300) {
+				pending.decrementAndGet();
+				Metrics.increment("callbacks.delivered");
+				Metrics.record("callbacks.latency_ms", System.currentTimeMillis() - createdAt);
+				logger.info("Proof sent to callbackURL {}", url);
+				finish();
+			} else if (retryable(status) && attempts < maxAttempts) {
+				Metrics.increment("callbacks.retried");
+				schedule(this, backoff(attempts));
+			} else {
+				pending.decrementAndGet();
+				Metrics.increment("callbacks.failed");
+				logger.error("Sending proof to {} failed after {} attempts (status {})", url, attempts, status);
+				finish();
+			}
+		}
+
+		private void finish() {
+			if (done == null)
+				return;
+			try {
+				done.run();
+			} catch (RuntimeException e) {
+				logger.error("Callback completion handler failed", e);
+			}
+		}
+
+		/**
+		 * @return The HTTP status of the response, or 0 if no response was received
+		 */
+		private int post() {
+			try {
+				HttpPost post = new HttpPost(url.toString());
+				post.setEntity(new StringEntity(jwt, ContentType.TEXT_PLAIN));
+				try (CloseableHttpResponse response = client.execute(post)) {
+					EntityUtils.consume(response.getEntity()); // So that the connection can be reused
+					return response.getStatusLine().getStatusCode();
+				}
+			} catch (IOException e) {
+				logger.warn("Sending proof to {} failed: {}", url, e.getMessage());
+				return 0;
+			} catch (RuntimeException e) {
+				logger.warn("Sending proof to {} failed: {}", url, e.toString());
+				return 0;
+			}
+		}
+
+		private boolean retryable(int status) {
+			return status == 0 || status == 429 || status >= 500;
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package org.irmacard.api.web;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread pool for CPU-bound cryptographic work (e.g. verifying proofs and signing result JWTs) that
+ * should not be done on the request threads. It has one thread per core by default, since more threads
+ * would not make it any faster. Its queue is bounded: when it is full, tasks are rejected with a
+ * {@link java.util.concurrent.RejectedExecutionException} instead of piling up.
+ *
+ * Batches of session requests are verified on a separate, smaller pool (see {@link #getBatchExecutor()}),
+ * so that a client that starts many sessions at once cannot fill the queue that tokens depend on.
+ * After {@link #shutdown()}, both pools reject all work.
+ */
+public class CryptoExecutor {
+	private static volatile ThreadPoolExecutor executor;
+	private static volatile ThreadPoolExecutor batchExecutor;
+	private static volatile boolean shutdown;
+
+	static {
+		Metrics.gauge("crypto.queue.depth", new Metrics.Gauge() {
+			@Override public long get() {
+				ThreadPoolExecutor current = executor;
+				return current == null ? 0 : current.getQueue().size();
+			}
+		});
+		Metrics.gauge("crypto.active", new Metrics.Gauge() {
+			@Override public long get() {
+				ThreadPoolExecutor current = executor;
+				return current == null ? 0 : current.getActiveCount();
+			}
+		});
+	}
+
+	private CryptoExecutor() {}
+
+	/**
+	 * @throws RejectedExecutionException If the pool was shut down
+	 */
+	public static ExecutorService getExecutor() {
+		if (executor == null) {
+			synchronized (CryptoExecutor.class) {
+				checkShutdown();
+				if (executor == null) {
+					ApiConfiguration conf = ApiConfiguration.getInstance();
+					executor = newPool("crypto-", conf.getCryptoThreads(), conf.getCryptoQueueSize());
+				}
+			}
+		}
+		return executor;
+	}
+
+	/**
+	 * @return The pool for verifying the JWTs of batches of session requests. Its queue holds one
+	 * batch; callers should do the work themselves when it is full.
+	 * @throws RejectedExecutionException If the pool was shut down
+	 */
+	public static ExecutorService getBatchExecutor() {
+		if (batchExecutor == null) {
+			synchronized (CryptoExecutor.class) {
+				checkShutdown();
+				if (batchExecutor == null) {
+					ApiConfiguration conf = ApiConfiguration.getInstance();
+					batchExecutor = newPool("crypto-batch-", conf.getBatchThreads(), Math.max(conf.getMaxBatchSize(), 1));
+				}
+			}
+		}
+		return batchExecutor;
+	}
+
+	private static void checkShutdown() {
+		if (shutdown)
+			throw new RejectedExecutionException("Crypto executor was shut down");
+	}
+
+	private static ThreadPoolExecutor newPool(final String name, int threads, int queueSize) {
+		return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+					@Override public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, name + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * Stop both pools. The executors that callers already obtained reject new tasks; later calls to
+	 * {@link #getExecutor()} and {@link #getBatchExecutor()} throw instead of starting new pools.
+	 */
+	public static synchronized void shutdown() {
+		shutdown = true;
+		if (executor != null)
+			executor.shutdownNow();
+		if (batchExecutor != null)
+			batchExecutor.shutdownNow();
+	}
+}
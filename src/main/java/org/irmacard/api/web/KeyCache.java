@@ -0,0 +1,194 @@
+package org.irmacard.api.web;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.*;
+import java.security.KeyManagementException;
+import java.security.PublicKey;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+/**
+ * Caches the public keys of clients and keyshare servers, so that verifying a JWT does not require
+ * reading and decoding a key file. The cache is emptied whenever something changes in one of the
+ * directories containing these keys, or when irma_configuration is reloaded. Keys that could not be
+ * loaded are remembered for a short while, so that requests with unknown key identifiers do not
+ * cause disk I/O either.
+ */
+public class KeyCache {
+	private static Logger logger = LoggerFactory.getLogger(KeyCache.class);
+
+	private static final long NEGATIVE_TTL = 10 * 1000;
+	private static final int MAX_NEGATIVE_ENTRIES = 10000;
+	private static final String[] KEY_DIRECTORIES = {"verifiers", "issuers", "sigclients"};
+
+	public interface Loader {
+		PublicKey load() throws KeyManagementException;
+	}
+
+	private static final ConcurrentHashMap<String, PublicKey> keys = new ConcurrentHashMap<>();
+	/** Identifiers of keys that could not be loaded, and until when we believe that */
+	private static final ConcurrentHashMap<String, Long> missing = new ConcurrentHashMap<>();
+	/** Incremented by each invalidation, so that loads that raced with one are not cached */
+	private static final AtomicLong generation = new AtomicLong();
+	private static WatchService watcher;
+	private static Path irmaConfiguration;
+
+	private KeyCache() {}
+
+	/**
+	 * Get the key with the specified identifier from the cache, or load it using the loader.
+	 * @throws KeyManagementException If the key could not be loaded, now or recently
+	 */
+	public static PublicKey get(String id, Loader loader) throws KeyManagementException {
+		PublicKey cached = keys.get(id);
+		if (cached != null) {
+			Metrics.increment("keys.cache.hit");
+			return cached;
+		}
+		Long missingUntil = missing.get(id);
+		if (missingUntil != null && missingUntil > System.currentTimeMillis()) {
+			Metrics.increment("keys.cache.negative_hit");
+			throw new KeyManagementException("Key " + id + " not found");
+		}
+
+		Metrics.increment("keys.cache.miss");
+		long loadedIn = generation.get();
+		try {
+			PublicKey key = loader.load();
+			keys.put(id, key);
+			// If the cache was invalidated while we were loading, we may have loaded the old key.
+			// invalidate() increments the generation before it clears, so either it clears our
+			// entry or we see the new generation here.
+			if (generation.get() != loadedIn)
+				keys.remove(id, key);
+			missing.remove(id);
+			return key;
+		} catch (KeyManagementException e) {
+			// Don't let floods of made-up key identifiers grow the cache without bound
+			if (missing.size() >= MAX_NEGATIVE_ENTRIES)
+				purgeMissing();
+			Long until = System.currentTimeMillis() + NEGATIVE_TTL;
+			missing.put(id, until);
+			if (generation.get() != loadedIn)
+				missing.remove(id, until);
+			throw e;
+		}
+	}
+
+	/**
+	 * Forget the keys that could not be loaded: those that are expired, or if that is not enough, all of them.
+	 * The keys that were loaded are kept.
+	 */
+	private static void purgeMissing() {
+		long now = System.currentTimeMillis();
+		for (Iterator<Long> it = missing.values().iterator(); it.hasNext(); )
+			if (it.next() <= now)
+				it.remove();
+		if (missing.size() >= MAX_NEGATIVE_ENTRIES) {
+			missing.clear();
+			Metrics.increment("keys.cache.negative_purged");
+		}
+	}
+
+	public static void invalidate() {
+		generation.incrementAndGet();
+		keys.clear();
+		missing.clear();
+		Metrics.increment("keys.cache.invalidated");
+	}
+
+	/**
+	 * Start watching the key directories within the specified configuration directory for changes.
+	 * This has no effect if the configuration directory is not on the file system (e.g., if it is
+	 * packaged within the war), since then it cannot change anyway.
+	 */
+	public static synchronized void watch(URI configurationDirectory) {
+		if (watcher != null)
+			return;
+		if (!"file".equals(configurationDirectory.getScheme())) {
+			logger.info("Configuration directory {} is not a directory, not watching it", configurationDirectory);
+			return;
+		}
+
+		try {
+			WatchService service = FileSystems.getDefault().newWatchService();
+			Path root = Paths.get(configurationDirectory);
+			for (String directory : KEY_DIRECTORIES)
+				register(service, root.resolve(directory));
+
+			// The keyshare server keys live in the scheme manager directories. We also watch
+			// irma_configuration itself, to start watching scheme managers that are added later.
+			irmaConfiguration = root.resolve("irma_configuration");
+			if (Files.isDirectory(irmaConfiguration)) {
+				register(service, irmaConfiguration);
+				try (DirectoryStream<Path> schemeManagers = Files.newDirectoryStream(irmaConfiguration)) {
+					for (Path schemeManager : schemeManagers)
+						register(service, schemeManager);
+				}
+			}
+
+			watcher = service;
+			startWatching(service);
+		} catch (IOException e) {
+			logger.warn("Cannot watch {} for key changes", configurationDirectory, e);
+		}
+	}
+
+	private static void register(WatchService service, Path directory) throws IOException {
+		if (Files.isDirectory(directory))
+			directory.register(service, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+	}
+
+	private static void registerSchemeManager(WatchService service, Path schemeManager) {
+		try {
+			register(service, schemeManager);
+		} catch (IOException e) {
+			logger.warn("Cannot watch {} for key changes", schemeManager, e);
+		}
+	}
+
+	private static void startWatching(final WatchService service) {
+		Thread thread = new Thread(new Runnable() {
+			@Override public void run() {
+				while (true) {
+					WatchKey key;
+					try {
+						key = service.take();
+					} catch (InterruptedException|ClosedWatchServiceException e) {
+						return;
+					}
+
+					for (WatchEvent<?> event : key.pollEvents()) {
+						logger.info("Key directory changed: {} {}", event.kind(), event.context());
+						if (event.kind() == ENTRY_CREATE && irmaConfiguration.equals(key.watchable()))
+							registerSchemeManager(service, irmaConfiguration.resolve((Path) event.context()));
+					}
+					invalidate();
+					key.reset();
+				}
+			}
+		}, "key-cache-watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public static synchronized void shutdown() {
+		if (watcher == null)
+			return;
+		try {
+			watcher.close();
+		} catch (IOException e) {
+			logger.warn("Failed to close key directory watcher", e);
+		}
+		watcher = null;
+	}
+}
@@ -0,0 +1,93 @@
+package org.irmacard.api.web;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide registry of named counters and gauges. Counters are plain {@link AtomicLong}s, so
+ * updating them from hot paths never blocks. The current values can be fetched at /metrics if
+ * "enable_metrics" is set in the configuration.
+ */
+public class Metrics {
+	/**
+	 * A value that is computed when the metrics are read, instead of being maintained as a counter.
+	 */
+	public interface Gauge {
+		long get();
+	}
+
+	private static final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap<String, Gauge> gauges = new ConcurrentHashMap<>();
+
+	private Metrics() {}
+
+	public static AtomicLong counter(String name) {
+		AtomicLong counter = counters.get(name);
+		if (counter == null) {
+			AtomicLong existing = counters.putIfAbsent(name, counter = new AtomicLong());
+			if (existing != null)
+				counter = existing;
+		}
+		return counter;
+	}
+
+	public static void increment(String name) {
+		counter(name).incrementAndGet();
+	}
+
+	public static void add(String name, long delta) {
+		counter(name).addAndGet(delta);
+	}
+
+	/**
+	 * Raise the specified counter to the given value, if it is currently lower.
+	 */
+	public static void max(String name, long value) {
+		AtomicLong counter = counter(name);
+		long current;
+		while ((current = counter.get()) < value)
+			if (counter.compareAndSet(current, value))
+				return;
+	}
+
+	/**
+	 * Record a measurement (e.g. a latency) as three counters: name.count, name.total and name.max.
+	 */
+	public static void record(String name, long value) {
+		increment(name + ".count");
+		add(name + ".total", value);
+		max(name + ".max", value);
+	}
+
+	/**
+	 * @return A bounded name suffix for the specified count, for metrics that are kept per size:
+	 * "1", "2", "3-4", "5-8" or "9+"
+	 */
+	public static String bucket(int count) {
+		if (count <= 2)
+			return Integer.toString(count);
+		if (count <= 4)
+			return "3-4";
+		if (count <= 8)
+			return "5-8";
+		return "9+";
+	}
+
+	public static void gauge(String name, Gauge gauge) {
+		gauges.put(name, gauge);
+	}
+
+	/**
+	 * @return The current value of all counters and gauges, sorted by name
+	 */
+	public static Map<String, Long> snapshot() {
+		TreeMap<String, Long> values = new TreeMap<>();
+		for (Map.Entry<String, AtomicLong> entry : counters.entrySet())
+			values.put(entry.getKey(), entry.getValue().get());
+		for (Map.Entry<String, Gauge> entry : gauges.entrySet())
+			values.put(entry.getKey(), entry.getValue().get());
+		return values;
+	}
+}
@@ -0,0 +1,188 @@
+package org.irmacard.api.web;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.apache.commons.codec.binary.Base64;
+import org.irmacard.api.common.ClientRequest;
+import org.irmacard.api.common.exceptions.ApiError;
+import org.irmacard.api.common.exceptions.ApiException;
+import org.irmacard.api.common.util.GsonUtil;
+import org.irmacard.api.web.resources.BaseResource;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Session request templates: disclosure or signature session requests that a client registered (with
+ * a signed JWT) once, and that were validated and authorized at that time. New sessions can then be
+ * started from the template by its identifier, with only a few fields (such as the data) differing per
+ * session, without decoding and validating the full request again. Each start is a small JWT that must
+ * be signed by the client that registered the template; sessions started from a template keep the
+ * registration JWT as their JWT. Issuance requests cannot be templates: each issuance should be
+ * authorized on its own.
+ *
+ * The identifier of a template is an HMAC over its contents under a key that is generated when the
+ * server starts, so registering the same request twice yields the same identifier, and identifiers
+ * cannot be guessed. Each client can have at most max_templates templates; a template expires
+ * template_ttl seconds after it was last registered. All templates are dropped when irma_configuration
+ * is reloaded, since they were validated against the old configuration.
+ */
+public class RequestTemplates {
+	/** The fields of a client request that may differ between sessions started from the same template */
+	private static final List<String> ARGUMENTS = Arrays.asList("data", "validity", "timeout");
+
+	private static final byte[] key = new byte[32];
+	private static final ConcurrentHashMap<String, Template> templates = new ConcurrentHashMap<>();
+	/** The templates of each client; registering and expiring synchronizes on the client's map */
+	private static final ConcurrentHashMap<String, HashMap<String, Template>> byClient = new ConcurrentHashMap<>();
+
+	static {
+		new SecureRandom().nextBytes(key);
+	}
+
+	public static class Template {
+		private final BaseResource.Action action;
+		private final String client;
+		private final String request;
+		private final String jwt;
+		private final long expiresAt;
+
+		private Template(BaseResource.Action action, String client, String request, String jwt, long expiresAt) {
+			this.action = action;
+			this.client = client;
+			this.request = request;
+			this.jwt = jwt;
+			this.expiresAt = expiresAt;
+		}
+
+		/**
+		 * @return The client that registered the template, to which sessions started from it are attributed
+		 */
+		public String getClient() {
+			return client;
+		}
+
+		private boolean isExpired(long now) {
+			return expiresAt <= now;
+		}
+
+		/**
+		 * @return A new client request from this template, with the specified arguments filled in
+		 * @throws ApiException If the arguments contain other fields than those that may differ per session
+		 */
+		public <T extends ClientRequest<?>> T instantiate(JsonObject arguments, Class<T> clazz) {
+			Gson gson = GsonUtil.getGson();
+			JsonObject json = gson.fromJson(request, JsonObject.class);
+			if (arguments != null) {
+				for (Map.Entry<String, JsonElement> argument : arguments.entrySet()) {
+					if (!ARGUMENTS.contains(argument.getKey()))
+						throw new ApiException(ApiError.MALFORMED_INPUT, "Templates do not accept " + argument.getKey());
+					json.add(argument.getKey(), argument.getValue());
+				}
+			}
+			return gson.fromJson(json, clazz);
+		}
+
+		/**
+		 * @return The signed JWT with which the template was registered, which the sessions started
+		 * from it are given as their JWT
+		 */
+		public String getJwt() {
+			return jwt;
+		}
+	}
+
+	private RequestTemplates() {}
+
+	/**
+	 * Register a validated client request as template, or extend the lifetime of the same template.
+	 * @return The identifier of the template
+	 * @throws SessionLimitException If the client already has max_templates other templates
+	 */
+	public static String register(BaseResource.Action action, String client, ClientRequest<?> clientRequest, String jwt) {
+		if (action == BaseResource.Action.ISSUING)
+			throw new ApiException(ApiError.MALFORMED_INPUT, "Issuance requests cannot be templates");
+		if (client == null)
+			throw new ApiException(ApiError.JWT_INVALID, "Templates must be registered with a signed JWT");
+
+		ApiConfiguration conf = ApiConfiguration.getInstance();
+		String request = GsonUtil.getGson().toJson(clientRequest);
+		String id = identifier(action.name() + "\n" + client + "\n" + request);
+		long now = System.currentTimeMillis();
+		Template template = new Template(action, client, request, jwt, now + conf.getTemplateTtl() * 1000L);
+
+		HashMap<String, Template> own = byClient.get(client);
+		if (own == null) {
+			byClient.putIfAbsent(client, new HashMap<String, Template>());
+			own = byClient.get(client);
+		}
+		synchronized (own) {
+			expire(own, now);
+			if (!own.containsKey(id) && own.size() >= conf.getMaxTemplates())
+				throw new SessionLimitException("Maximum number of request templates reached");
+			own.put(id, template);
+			templates.put(id, template);
+		}
+		Metrics.increment("templates.registered");
+		return id;
+	}
+
+	private static void expire(HashMap<String, Template> own, long now) {
+		for (Iterator<Map.Entry<String, Template>> it = own.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry<String, Template> entry = it.next();
+			if (entry.getValue().isExpired(now)) {
+				templates.remove(entry.getKey(), entry.getValue());
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * @throws ApiException If there is no (unexpired) template with the specified identifier for this action
+	 */
+	public static Template get(BaseResource.Action action, String id) throws ApiException {
+		Template template = id == null ? null : templates.get(id);
+		if (template != null && template.isExpired(System.currentTimeMillis())) {
+			HashMap<String, Template> own = byClient.get(template.client);
+			if (own != null) {
+				synchronized (own) {
+					own.remove(id, template);
+				}
+			}
+			templates.remove(id, template);
+			template = null;
+		}
+		if (template == null || template.action != action)
+			throw new ApiException(ApiError.SESSION_UNKNOWN, "Unknown template " + id);
+		Metrics.increment("templates.instantiated");
+		return template;
+	}
+
+	/**
+	 * Drop all templates, e.g. because the credential types or keys they were validated against changed.
+	 */
+	public static void clear() {
+		byClient.clear();
+		templates.clear();
+	}
+
+	private static String identifier(String content) {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(key, "HmacSHA256"));
+			return Base64.encodeBase64URLSafeString(mac.doFinal(content.getBytes(StandardCharsets.UTF_8)));
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,33 @@
+package org.irmacard.api.web;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.util.LinkedHashMap;
+
+/**
+ * Thrown when a request needs cryptographic work but the queue of the {@link CryptoExecutor} is full,
+ * or when a JWT cannot be remembered because the replay cache is full. It results in a 503 Service Unavailable response with a Retry-After header, in the same JSON format
+ * as other errors. Nothing about the session has changed at that point, so the request can be retried.
+ */
+public class ServerBusyException extends WebApplicationException {
+	private static final long serialVersionUID = 1L;
+	private static final int RETRY_AFTER = 1;
+
+	public ServerBusyException() {
+		super("Server busy", buildResponse());
+	}
+
+	private static Response buildResponse() {
+		LinkedHashMap<String, Object> entity = new LinkedHashMap<>();
+		entity.put("error", "SERVER_BUSY");
+		entity.put("status", Response.Status.SERVICE_UNAVAILABLE.getStatusCode());
+		entity.put("description", "Server busy, try again later");
+
+		return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+				.header("Retry-After", RETRY_AFTER)
+				.entity(entity)
+				.type(MediaType.APPLICATION_JSON)
+				.build();
+	}
+}
@@ -0,0 +1,32 @@
+package org.irmacard.api.web;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.util.LinkedHashMap;
+
+/**
+ * Thrown when a session request JWT is retried (see {@link org.irmacard.api.web.sessions.JwtReplayCache})
+ * while the session that it started earlier is already in progress or finished, so that it can no
+ * longer be handed out again. It results in a 409 Conflict response, in the same JSON format as other
+ * errors.
+ */
+public class SessionConflictException extends WebApplicationException {
+	private static final long serialVersionUID = 1L;
+
+	public SessionConflictException(String description) {
+		super(description, buildResponse(description));
+	}
+
+	private static Response buildResponse(String description) {
+		LinkedHashMap<String, Object> entity = new LinkedHashMap<>();
+		entity.put("error", "SESSION_ALREADY_STARTED");
+		entity.put("status", Response.Status.CONFLICT.getStatusCode());
+		entity.put("description", description);
+
+		return Response.status(Response.Status.CONFLICT)
+				.entity(entity)
+				.type(MediaType.APPLICATION_JSON)
+				.build();
+	}
+}
@@ -0,0 +1,32 @@
+package org.irmacard.api.web;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.util.LinkedHashMap;
+
+/**
+ * Thrown when a new session would exceed one of the configured session limits. It results in a
+ * 429 Too Many Requests response with a Retry-After header, in the same JSON format as other errors.
+ */
+public class SessionLimitException extends WebApplicationException {
+	private static final long serialVersionUID = 1L;
+	private static final int TOO_MANY_REQUESTS = 429;
+
+	public SessionLimitException(String description) {
+		super(description, buildResponse(description));
+	}
+
+	private static Response buildResponse(String description) {
+		LinkedHashMap<String, Object> entity = new LinkedHashMap<>();
+		entity.put("error", "TOO_MANY_SESSIONS");
+		entity.put("status", TOO_MANY_REQUESTS);
+		entity.put("description", description);
+
+		return Response.status(TOO_MANY_REQUESTS)
+				.header("Retry-After", ApiConfiguration.getInstance().getSessionLimitRetryAfter())
+				.entity(entity)
+				.type(MediaType.APPLICATION_JSON)
+				.build();
+	}
+}
@@ -35,6 +35,8 @@ package org.irmacard.api.web;
 
 import org.irmacard.api.web.sessions.IrmaSession;
 import org.irmacard.api.web.sessions.Sessions;
+import org.irmacard.api.web.sessions.StatusListener;
+import org.irmacard.api.web.sessions.StatusSender;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -42,18 +44,36 @@ import javax.websocket.*;
 import javax.websocket.server.PathParam;
 import javax.websocket.server.ServerEndpoint;
 import java.io.IOException;
-
+import java.util.List;
+
+/**
+ * Sends the status updates of a session to the client-website. Clients that open the socket with
+ * ?result=jwt are sent "DONE &lt;jwt&gt;" instead of "DONE", where the JWT is the signed result that
+ * would otherwise be fetched from the getproof endpoint (if the session has one). Since the result
+ * has then been delivered, the session is closed afterwards: getproof then fails with SESSION_UNKNOWN.
+ * See also the README.
+ */
 @ServerEndpoint("/api/v2/status/{sessionToken}")
-public class StatusSocket {
+public class StatusSocket implements StatusListener {
     private static Logger logger = LoggerFactory.getLogger(StatusSocket.class);
 
-    private Session session;
-    private RemoteEndpoint.Async remote;
+    private final StatusSender sender = new StatusSender(new Runnable() {
+        @Override public void run() {
+            close();
+        }
+    });
+    private volatile Session session;
+    private volatile RemoteEndpoint.Async remote;
+    private IrmaSession irmaSession;
+    private boolean sendResult;
+    private volatile boolean awaitingResult;
 
     @OnClose
     public void onWebSocketClose(CloseReason closeReason) {
         this.session = null;
         this.remote = null;
+        if (irmaSession != null)
+            irmaSession.removeStatusListener(this);
         logger.info("WebSocket Close: " + closeReason.getCloseCode() + " "
                 + closeReason.getReasonPhrase());
     }
@@ -67,6 +87,10 @@ public class StatusSocket {
         // Prevent websockets from being closed prematurely.
         session.setMaxIdleTimeout(0);
 
+        // Exactly ?result=jwt; other values (or a repeated parameter) get the plain status updates
+        List<String> result = session.getRequestParameterMap().get("result");
+        sendResult = result != null && result.size() == 1 && "jwt".equals(result.get(0));
+
         logger.info("WebSocket Connect: " + session);
 
         // Store websocket connection in the corresponding session
@@ -75,7 +99,8 @@ public class StatusSocket {
             // TODO: Add some error handling here
             logger.error("Strange: session not yet setup");
         } else {
-            irmaSession.setStatusSocket(this);
+            this.irmaSession = irmaSession;
+            irmaSession.addStatusListener(this);
         }
     }
 
@@ -97,29 +122,57 @@ public class StatusSocket {
     }
 
     /**
-     * Informs the client-website that a token has connected to the verification
-     * server.
-     */
-    public void sendConnected() {
-        sendUpdate("CONNECTED");
-    }
-
-    /**
-     * Inform the client-website that the token has completed the verification.
+     * Informs the client-website of the progress of the session: CONNECTED when a token has
+     * connected, DONE or CANCELLED when the token completed or rejected the session, and
+     * TIMEOUT when the session expired. The socket is closed when the session is closed.
+     * Sending is done by our {@link StatusSender}. If the result is to be sent along with DONE, it
+     * is signed on the {@link org.irmacard.api.web.CryptoExecutor} first, and DONE and any later
+     * updates are passed to the sender once it is signed, so that they stay in order.
      */
-    public void sendDone() {
-        sendUpdate("DONE");
+    @Override
+    public void onStatus(final IrmaSession session, final Event event) {
+        final Runnable send = new Runnable() {
+            @Override public void run() {
+                if (event == Event.CLOSED)
+                    close();
+                else if (event == Event.DONE && sendResult)
+                    sendResult(session);
+                else
+                    sendUpdate(event.name());
+            }
+        };
+
+        if (sendResult && (event == Event.DONE || awaitingResult)) {
+            awaitingResult = true;
+            session.whenResultSigned(new Runnable() {
+                @Override public void run() {
+                    sender.send(send);
+                }
+            });
+        } else {
+            sender.send(send);
+        }
     }
 
-    /**
-     * Inform the client website that the token rejected the verification
-     */
-    public void sendCancelled() {
-        sendUpdate("CANCELLED");
-    }
+    private void sendResult(final IrmaSession session) {
+        // Null if it could not be signed in the background, e.g. because the crypto executor is full
+        String jwt = session.getPresignedResult();
+        RemoteEndpoint.Async remote = this.remote;
+        if (jwt == null || remote == null) {
+            sendUpdate(Event.DONE.name()); // The client has to fetch the result itself
+            return;
+        }
 
-    public void sendTimeout() {
-        sendUpdate("TIMEOUT");
+        remote.sendText(Event.DONE.name() + " " + jwt, new SendHandler() {
+            @Override public void onResult(SendResult result) {
+                if (result.isOK()) {
+                    Metrics.increment("status.results_pushed");
+                    session.close();
+                } else {
+                    logger.warn("Failed to send result of session " + session.getSessionToken(), result.getException());
+                }
+            }
+        });
     }
 
     /**
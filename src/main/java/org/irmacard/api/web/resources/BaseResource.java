@@ -1,11 +1,13 @@
 package org.irmacard.api.web.resources;
 
+import com.google.gson.JsonObject;
 import io.jsonwebtoken.*;
 import org.irmacard.api.common.*;
 import org.irmacard.api.common.JwtParser;
 import org.irmacard.api.common.disclosure.DisclosureProofResult;
 import org.irmacard.api.common.disclosure.ServiceProviderRequest;
 import org.irmacard.api.common.exceptions.ApiError;
+import org.irmacard.api.common.exceptions.ApiErrorMessage;
 import org.irmacard.api.common.exceptions.ApiException;
 import org.irmacard.api.common.issuing.IdentityProviderRequest;
 import org.irmacard.api.common.issuing.IssuingRequest;
@@ -13,16 +15,31 @@ import org.irmacard.api.common.signatures.SignatureClientRequest;
 import org.irmacard.api.common.signatures.SignatureProofRequest;
 import org.irmacard.api.web.ApiApplication;
 import org.irmacard.api.web.ApiConfiguration;
+import org.irmacard.api.web.CryptoExecutor;
+import org.irmacard.api.web.Metrics;
+import org.irmacard.api.web.RequestTemplates;
+import org.irmacard.api.web.ServerBusyException;
 import org.irmacard.api.web.sessions.*;
 import org.irmacard.credentials.info.IssuerIdentifier;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.TimeoutHandler;
 import java.math.BigInteger;
 import java.security.Key;
 import java.security.KeyManagementException;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 public abstract class BaseResource
 		<RequestClass extends SessionRequest,
@@ -70,12 +87,41 @@ public abstract class BaseResource
 	// Base methods for subclasses to use
 
 	public ClientQr newSession(String jwt) {
+		SessionQuota.check();
+
+		// Retries of the same JWT can be answered without verifying it again
+		JwtReplayCache.Mode replayMode = ApiConfiguration.getInstance().getJwtReplayMode();
+		if (replayMode != JwtReplayCache.Mode.ALLOW) {
+			String key = JwtReplayCache.key(action.name(), jwt);
+			ClientQr previous = key == null ? null : JwtReplayCache.check(key, replayMode);
+			if (previous != null)
+				return previous;
+		}
+
+		JwtParser<ClientClass> parser = parseJwt(jwt);
+		return create(parser.getPayload(), parser.getKeyIdentifier(), jwt);
+	}
+
+	/**
+	 * Verify the session request JWT against the public key of the client that signed it.
+	 */
+	private JwtParser<ClientClass> parseJwt(String jwt) {
 		@SuppressWarnings("unchecked")
 		JwtParser<ClientClass> parser = (JwtParser<ClientClass>) new JwtParser<>(action.ClientClass,
 				ApiConfiguration.getInstance().allowUnsignedRequests(action),
 				ApiConfiguration.getInstance().getMaxJwtAge());
 
-		parser.setKeyResolver(new SigningKeyResolverAdapter() {
+		parser.setKeyResolver(keyResolver(null));
+		parser.parseJwt(jwt);
+		return parser;
+	}
+
+	/**
+	 * @param client If not null, the only client whose signature is accepted
+	 * @return A resolver of the public key of the client that signed a JWT
+	 */
+	private SigningKeyResolver keyResolver(final String client) {
+		return new SigningKeyResolverAdapter() {
 			@Override public Key resolveSigningKey(JwsHeader header, Claims claims) {
 				String keyId = (String) header.get("kid");
 				if (keyId == null)
@@ -84,27 +130,169 @@ public abstract class BaseResource
 					if (!ApiConfiguration.getInstance().getClientName(keyId).equals(claims.getIssuer()))
 						throw new ApiException(ApiError.JWT_INVALID);
 				}
+				if (client != null && !client.equals(keyId))
+					throw new ApiException(ApiError.UNAUTHORIZED);
 				return ApiConfiguration.getInstance().getClientPublicKey(action, keyId);
 			}
-		});
+		};
+	}
 
-		parser.parseJwt(jwt);
-		String keyId = parser.getKeyIdentifier();
-		ClientClass request = parser.getPayload();
-		return create(request, keyId, jwt);
+	/**
+	 * Register the session request in the specified JWT as template, after validating it as usual.
+	 * @return The identifier of the template
+	 */
+	public Map<String, String> newTemplate(String jwt) {
+		JwtParser<ClientClass> parser = parseJwt(jwt);
+		ClientClass clientRequest = parser.getPayload();
+		String client = parser.getKeyIdentifier();
+		validate(clientRequest, client);
+
+		String id = RequestTemplates.register(action, client, clientRequest, jwt);
+		logger.info("Registered template {} for {}", id, client);
+		return Collections.singletonMap("template", id);
 	}
 
-	protected abstract ClientQr create(ClientClass clientRequest, String issuer, String jwt);
+	/**
+	 * Start a session from the specified template, with the per-session fields from the "arguments"
+	 * claim of the specified JWT, which must be signed by the client that registered the template.
+	 * The session gets the JWT with which the template was registered as its JWT; the start JWT is
+	 * what is checked against the replay cache.
+	 */
+	public ClientQr newSession(String templateId, String jwt) {
+		SessionQuota.check();
 
-	protected ClientQr create(SessionClass session, ClientClass clientRequest, String jwt) {
-		if (clientRequest.getTimeout() == 0)
-			clientRequest.setTimeout(ApiConfiguration.getInstance().getTokenGetTimeout());
-		session.setClientRequest(clientRequest);
+		RequestTemplates.Template template = RequestTemplates.get(action, templateId);
 
-		RequestClass request = clientRequest.getRequest();
-		request.setNonceAndContext();
+		JwtReplayCache.Mode replayMode = ApiConfiguration.getInstance().getJwtReplayMode();
+		if (replayMode != JwtReplayCache.Mode.ALLOW) {
+			String key = JwtReplayCache.key(action.name(), jwt);
+			ClientQr previous = key == null ? null : JwtReplayCache.check(key, replayMode);
+			if (previous != null)
+				return previous;
+		}
+
+		JwtParser<JsonObject> parser = new JwtParser<>(JsonObject.class, false,
+				ApiConfiguration.getInstance().getMaxJwtAge(), "template_session", "arguments");
+		parser.setKeyResolver(keyResolver(template.getClient()));
+		JsonObject arguments = parser.parseJwt(jwt).getPayload();
+
+		@SuppressWarnings("unchecked")
+		ClientClass clientRequest = (ClientClass) template.instantiate(arguments, action.ClientClass);
+		SessionClass session = createSession(clientRequest);
+		return rememberJwt(session, jwt, create(session, clientRequest, template.getClient(), template.getJwt()));
+	}
+
+	/**
+	 * The outcome of one of the session requests in a batch: either a QR or an error.
+	 */
+	public static class BatchResult {
+		private ClientQr qr;
+		private ApiErrorMessage error;
+
+		BatchResult(ClientQr qr, ApiErrorMessage error) {
+			this.qr = qr;
+			this.error = error;
+		}
+
+		public ClientQr getQr() {
+			return qr;
+		}
+
+		public ApiErrorMessage getError() {
+			return error;
+		}
+	}
+
+	/**
+	 * Start a session for each of the specified session request JWTs. The JWTs are verified in
+	 * parallel on the batch pool of the {@link CryptoExecutor} and on this thread, and a failing JWT
+	 * results in an error for that item only.
+	 * @return For each JWT, in the same order, its QR or the reason it was refused
+	 */
+	public List<BatchResult> newSessions(String[] jwts) {
+		if (jwts == null)
+			throw new ApiException(ApiError.MALFORMED_INPUT);
+		int maxBatchSize = ApiConfiguration.getInstance().getMaxBatchSize();
+		if (jwts.length > maxBatchSize)
+			throw new ApiException(ApiError.MALFORMED_INPUT, "At most " + maxBatchSize + " session requests per batch");
+		SessionQuota.check();
+
+		logger.info("Received batch of {} session requests", jwts.length);
+		ArrayList<FutureTask<ClientQr>> tasks = new ArrayList<>(jwts.length);
+		for (final String jwt : jwts) {
+			FutureTask<ClientQr> task = new FutureTask<>(new Callable<ClientQr>() {
+				@Override public ClientQr call() {
+					return newSession(jwt);
+				}
+			});
+			tasks.add(task);
+			try {
+				CryptoExecutor.getBatchExecutor().execute(task);
+			} catch (RejectedExecutionException e) {
+				// We'll run it ourselves below
+			}
+		}
+
+		ArrayList<BatchResult> results = new ArrayList<>(jwts.length);
+		int failed = 0;
+		for (FutureTask<ClientQr> task : tasks) {
+			task.run(); // Does nothing if a pool thread already started on it
+			try {
+				results.add(new BatchResult(task.get(), null));
+			} catch (ExecutionException e) {
+				logger.warn("Session request in batch refused: {}", e.getCause().getMessage());
+				results.add(new BatchResult(null, new ApiErrorMessage(e.getCause())));
+				failed++;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ApiException(ApiError.EXCEPTION);
+			}
+		}
+
+		Metrics.add("sessions.batch.requests", jwts.length);
+		Metrics.add("sessions.batch.failed", failed);
+		return results;
+	}
+
+	/**
+	 * Check that the client request is well-formed, refers to existing credential types and keys, and
+	 * that the client is authorized for it; and fill in defaults.
+	 * @throws ApiException If it is not
+	 */
+	protected abstract void validate(ClientClass clientRequest, String client) throws ApiException;
+
+	/**
+	 * @return A new, empty session for the specified (validated) client request
+	 */
+	protected abstract SessionClass createSession(ClientClass clientRequest);
+
+	protected ClientQr create(ClientClass clientRequest, String client, String jwt) {
+		validate(clientRequest, client);
+		SessionClass session = createSession(clientRequest);
+		return rememberJwt(session, jwt, create(session, clientRequest, client, jwt));
+	}
+
+	/**
+	 * Set up the session for the client request, store it, and return its QR.
+	 */
+	protected ClientQr create(SessionClass session, ClientClass clientRequest, String client, String jwt) {
+		// Before anything is scheduled for the session, so that refused sessions cost nothing
+		session.admit(client);
+
+		try {
+			if (clientRequest.getTimeout() == 0)
+				clientRequest.setTimeout(ApiConfiguration.getInstance().getTokenGetTimeout());
+			session.setClientRequest(clientRequest);
+
+			RequestClass request = clientRequest.getRequest();
+			request.setNonceAndContext();
+
+			session.setJwt(jwt);
+		} catch (RuntimeException e) {
+			session.close(); // Releases its place in the session limits
+			throw e;
+		}
 
-		session.setJwt(jwt);
 		String token = session.getSessionToken();
 		sessions.addSession(session);
 
@@ -113,6 +301,33 @@ public abstract class BaseResource
 		return new ClientQr(minVersion, maxVersion, token, action.name().toLowerCase());
 	}
 
+	/**
+	 * Remember the JWT that started this session, if replays are not simply allowed, so that later
+	 * requests with the same JWT can be recognized. If another session was started concurrently with
+	 * the same JWT, this session is closed: in IDEMPOTENT mode in favour of that one, in REJECT mode
+	 * with JWT_INVALID. It is also closed if the JWT cannot be remembered in REJECT mode.
+	 */
+	private ClientQr rememberJwt(SessionClass session, String jwt, ClientQr qr) {
+		ApiConfiguration conf = ApiConfiguration.getInstance();
+		JwtReplayCache.Mode replayMode = conf.getJwtReplayMode();
+		String key = replayMode == JwtReplayCache.Mode.ALLOW ? null : JwtReplayCache.key(action.name(), jwt);
+		if (key == null)
+			return qr;
+
+		ClientQr existing;
+		try {
+			existing = JwtReplayCache.put(key, qr, session.getSessionToken(), conf.getMaxJwtAge(), replayMode);
+		} catch (RuntimeException e) {
+			session.close();
+			throw e;
+		}
+		if (existing == null)
+			return qr;
+
+		session.close(); // Only in IDEMPOTENT mode; in REJECT mode put() throws instead
+		return existing;
+	}
+
 	private ProtocolVersion chooseProtocolVersion(ProtocolVersion min, ProtocolVersion max) {
 		if (min.above(ApiApplication.maxVersion) || max.below(ApiApplication.minVersion))
 			throw new RuntimeException("Protocol version negotiation failed: no acceptable protocol version in range");
@@ -127,20 +342,24 @@ public abstract class BaseResource
 		logger.info("Received get, token: " + sessiontoken);
 
 		SessionClass session = sessions.getNonNullSession(sessiontoken);
-		if (session.getStatus() != IssueSession.Status.INITIALIZED) {
-			fail(ApiError.UNEXPECTED_REQUEST, session);
+		ProtocolVersion version = chooseProtocolVersion(minVersion, maxVersion);
+		if (!session.setStatusConnected()) {
+			// Another request got here first; the session is theirs, so leave it alone
+			logger.warn("Rejecting get of session {} that was already fetched", session.getSessionToken());
+			throw new ApiException(ApiError.UNEXPECTED_REQUEST);
 		}
 
-		session.setVersion(chooseProtocolVersion(minVersion, maxVersion));
-		session.setStatusConnected();
+		session.setVersion(version);
 		return session.getRequest();
 	}
 
 	public JwtSessionRequest getJwt(String sessiontoken, ProtocolVersion version) {
 		logger.info("Received jwt get, token: " + sessiontoken);
 		SessionClass session = sessions.getNonNullSession(sessiontoken);
-		if (session.getStatus() != IssueSession.Status.INITIALIZED) {
-			fail(ApiError.UNEXPECTED_REQUEST, session);
+		if (!session.setStatusConnected()) {
+			// Another request got here first; the session is theirs, so leave it alone
+			logger.warn("Rejecting get of session {} that was already fetched", session.getSessionToken());
+			throw new ApiException(ApiError.UNEXPECTED_REQUEST);
 		}
 
 		if (version != null)
@@ -148,7 +367,6 @@ public abstract class BaseResource
 		else
 			session.setVersion(new ProtocolVersion("2.2")); // < 2.3
 
-		session.setStatusConnected();
 		RequestClass request = session.getRequest();
 		BigInteger nonce = request.getNonce();
 		if (action == Action.SIGNING)
@@ -162,10 +380,40 @@ public abstract class BaseResource
 		return new JwtSessionRequest(session.getJwt(), nonce, request.getContext(), pks);
 	}
 
-	public IrmaSession.Status getStatus(String sessiontoken) {
-		return sessions
-				.getNonNullSession(sessiontoken)
-				.getStatus();
+	/**
+	 * Resume the response with the status of the session. If wait is positive and the session is not
+	 * finished yet, the response is parked (without holding on to a request thread) until the status
+	 * changes or until wait seconds (at most max_status_wait) have passed.
+	 */
+	public void getStatus(String sessiontoken, int wait, final AsyncResponse response) {
+		IrmaSession.Status status = sessions.peekNonNullSession(sessiontoken).getStatus();
+		if (wait <= 0 || status == IrmaSession.Status.DONE || status == IrmaSession.Status.CANCELLED) {
+			response.resume(status);
+			return;
+		}
+
+		// Listeners can only be added to the session itself, not to a copy
+		final SessionClass session = sessions.getNonNullSession(sessiontoken);
+
+		// The listener is first told the current status, which the client already knows
+		final StatusListener.Event current = StatusListener.Event.of(status);
+		final StatusListener waiter = new StatusListener() {
+			@Override public void onStatus(IrmaSession s, Event event) {
+				if (event == current)
+					return;
+				s.removeStatusListener(this);
+				response.resume(s.getStatus());
+			}
+		};
+		response.setTimeoutHandler(new TimeoutHandler() {
+			@Override public void handleTimeout(AsyncResponse timedOut) {
+				session.removeStatusListener(waiter);
+				timedOut.resume(session.getStatus());
+			}
+		});
+		response.setTimeout(Math.min(wait, ApiConfiguration.getInstance().getMaxStatusWait()), TimeUnit.SECONDS);
+		Metrics.increment("status.long_polls");
+		session.addStatusListener(waiter);
 	}
 
 	protected byte getMetadataVersion(ProtocolVersion version) {
@@ -179,9 +427,8 @@ public abstract class BaseResource
 		SessionClass session = sessions.getNonNullSession(sessiontoken);
 
 		logger.info("Received delete, token: " + sessiontoken);
-		if (session.getStatus() == IrmaSession.Status.CONNECTED) {
+		if (session.getStatus() == IrmaSession.Status.CONNECTED && session.setStatusCancelled()) {
 			// We have connected clients, we need to inform listeners of cancel
-			session.setStatusCancelled();
 
 			// If status socket is still active then the update has been sent, so we
 			// can remove the session immediately. Otherwise we wait until the
@@ -206,6 +453,73 @@ public abstract class BaseResource
 		throw new ApiException(error);
 	}
 
+	/**
+	 * Claims the session for processing the token's response. If the session is not CONNECTED it
+	 * fails as usual; if another request is already processing it, this request is rejected without
+	 * affecting the session, before any expensive work is done.
+	 * @throws ApiException If the session could not be claimed
+	 */
+	protected void startProcessing(SessionClass session) throws ApiException {
+		if (session.getStatus() != IrmaSession.Status.CONNECTED) {
+			fail(ApiError.UNEXPECTED_REQUEST, session);
+		}
+		if (!session.startProcessing()) {
+			logger.warn("Rejecting concurrent request for session {}", session.getSessionToken());
+			throw new ApiException(ApiError.UNEXPECTED_REQUEST);
+		}
+	}
+
+	/**
+	 * Claims the session (see {@link #startProcessing(IrmaSession)}) and processes the token's response on
+	 * the {@link CryptoExecutor}, resuming the suspended response with the outcome, so that the request
+	 * threads are not tied up by the cryptography. If the executor's queue is full the claim is given up
+	 * again and the request is refused right away, so that the token can retry later. The claim is also
+	 * given up if the session is not DONE after the task, e.g. because the task threw.
+	 * @throws ServerBusyException If the executor's queue is full
+	 */
+	protected void process(final SessionClass session, final AsyncResponse response, final Callable<?> task) {
+		startProcessing(session);
+		final long queuedAt = System.currentTimeMillis();
+		try {
+			CryptoExecutor.getExecutor().execute(new Runnable() {
+				@Override public void run() {
+					Metrics.record("crypto.queue_wait_ms", System.currentTimeMillis() - queuedAt);
+					Object result = null;
+					Throwable error = null;
+					try {
+						result = task.call();
+					} catch (Throwable e) {
+						error = e;
+					} finally {
+						// If the task did not finish the session (e.g. it threw before doing so), let the token
+						// try again, or compact it if it was cancelled meanwhile. Done before resuming,
+						// so that a retry finds it released
+						if (session.getStatus() != IrmaSession.Status.DONE)
+							session.stopProcessing();
+					}
+					if (error != null)
+						response.resume(error);
+					else
+						response.resume(result);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			session.stopProcessing();
+			Metrics.increment("crypto.rejected");
+			logger.warn("Crypto queue full, refusing response for session {}", session.getSessionToken());
+			throw new ServerBusyException();
+		}
+	}
+
+	/**
+	 * How long a signed result JWT with the specified validity (in seconds) may be handed out again
+	 * after it was signed, before a fresh one is signed. Half of its validity, so that the JWTs
+	 * that we hand out always have a reasonable part of their validity left.
+	 */
+	protected static long resultReuseMillis(int validity) {
+		return validity * 500L;
+	}
+
 	protected String signResultJwt(DisclosureProofResult result, int validity, String subject) throws KeyManagementException {
 		Calendar now = Calendar.getInstance();
 		Calendar expiry = Calendar.getInstance();
@@ -11,8 +11,9 @@ import org.irmacard.api.common.issuing.IdentityProviderRequest;
 import org.irmacard.api.common.issuing.IssuingRequest;
 import org.irmacard.api.web.ApiConfiguration;
 import org.irmacard.api.web.Historian;
-import org.irmacard.api.web.sessions.IrmaSession;
+import org.irmacard.api.web.Metrics;
 import org.irmacard.api.web.sessions.IssueSession;
+import org.irmacard.api.web.sessions.ResultJournal;
 import org.irmacard.api.web.sessions.Sessions;
 import org.irmacard.api.web.sessions.VerificationSession;
 import org.irmacard.credentials.Attributes;
@@ -31,12 +32,16 @@ import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
 import javax.ws.rs.*;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.MediaType;
 import java.security.Key;
 import java.security.KeyManagementException;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
 import javax.ws.rs.core.Context;
 import javax.servlet.http.HttpServletRequest;
 
@@ -45,6 +50,7 @@ public class IssueResource extends BaseResource
 		<IssuingRequest, IdentityProviderRequest, IssueSession> {
 
 	private static Logger logger = LoggerFactory.getLogger(IssueResource.class);
+	private static final int RESULT_VALIDITY = 120;
 
 	@Context
 	private HttpServletRequest servletRequest;
@@ -62,6 +68,14 @@ public class IssueResource extends BaseResource
 		return super.newSession(jwt);
 	}
 
+	@POST @Path("/batch")
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	@Override
+	public List<BatchResult> newSessions(String[] jwts) {
+		return super.newSessions(jwts);
+	}
+
 	@GET @Path("/{sessiontoken}")
 	@Produces(MediaType.APPLICATION_JSON)
 	@Override
@@ -81,8 +95,9 @@ public class IssueResource extends BaseResource
 	@GET @Path("/{sessiontoken}/status")
 	@Produces(MediaType.APPLICATION_JSON)
 	@Override
-	public IrmaSession.Status getStatus(@PathParam("sessiontoken") String sessiontoken) {
-		return super.getStatus(sessiontoken);
+	public void getStatus(@PathParam("sessiontoken") String sessiontoken, @QueryParam("wait") int wait,
+	                      @Suspended AsyncResponse response) {
+		super.getStatus(sessiontoken, wait, response);
 	}
 
 	@DELETE @Path("/{sessiontoken}")
@@ -93,15 +108,12 @@ public class IssueResource extends BaseResource
 
 	/**
 	 * Given an issuing request from a specified identity provider, check if it is authorized to issue what
-	 * it wants to issue, and if we can in fact issue those credentials; if so, generate a nonce and context
-	 * and store it in the sessions.
-	 *
-	 * @return The session token and protocol version, for the identity provider to forward to the token
+	 * it wants to issue, and if we can in fact issue those credentials.
 	 */
-	protected ClientQr create(IdentityProviderRequest isRequest, String idp, String jwt) {
+	@Override
+	protected void validate(IdentityProviderRequest isRequest, String idp) {
 		ApiConfiguration conf = ApiConfiguration.getInstance();
 		IssuingRequest request = isRequest.getRequest();
-		boolean isDistributed = false;
 		int counter;
 		String keyshareManager = null;
 
@@ -114,7 +126,6 @@ public class IssueResource extends BaseResource
 
 			String schemeManager = cred.getIdentifier().getSchemeManagerName();
 			if (DescriptionStore.getInstance().getSchemeManager(schemeManager).hasKeyshareServer()) {
-				isDistributed = true;
 				if (keyshareManager == null) {
 					keyshareManager = schemeManager;
 				} else if (!keyshareManager.equals(schemeManager)) { // We don't yet support issuance sessions with multiple keyshare servers
@@ -144,9 +155,17 @@ public class IssueResource extends BaseResource
 		logger.info("Received issuance session");
 		for (CredentialRequest cred : request.getCredentials())
 			logger.info("type: {}", cred.getIdentifier().toString());
+	}
 
-		IssueSession session = new IssueSession(isDistributed);
-		return super.create(session, isRequest, jwt);
+	@Override
+	protected IssueSession createSession(IdentityProviderRequest isRequest) {
+		boolean isDistributed = false;
+		for (CredentialRequest cred : isRequest.getRequest().getCredentials()) {
+			String schemeManager = cred.getIdentifier().getSchemeManagerName();
+			if (DescriptionStore.getInstance().getSchemeManager(schemeManager).hasKeyshareServer())
+				isDistributed = true;
+		}
+		return new IssueSession(isDistributed);
 	}
 
 	private HashMap<String, ProofP> proofps = new HashMap<>();
@@ -182,15 +201,24 @@ public class IssueResource extends BaseResource
 	@POST @Path("/{sessiontoken}/commitments")
 	@Consumes(MediaType.APPLICATION_JSON)
 	@Produces(MediaType.APPLICATION_JSON)
-	public ArrayList<IssueSignatureMessage> getSignatureMessages(IssueCommitmentMessage commitments,
-	                                                             @PathParam("sessiontoken") String sessiontoken) throws WebApplicationException {
-		IssueSession session = sessions.getNonNullSession(sessiontoken);
-		if (session.getStatus() != IssueSession.Status.CONNECTED) {
-			fail(ApiError.UNEXPECTED_REQUEST, session);
-		}
+	public void getSignatureMessages(final IssueCommitmentMessage commitments,
+	                                 @PathParam("sessiontoken") final String sessiontoken,
+	                                 @Suspended AsyncResponse response) {
+		final IssueSession session = sessions.getNonNullSession(sessiontoken);
+		// The servlet request is not available on the crypto threads, so look up the client here
+		final String clientIp = ApiConfiguration.getInstance().getClientIp(servletRequest);
+		process(session, response, new Callable<ArrayList<IssueSignatureMessage>>() {
+			@Override public ArrayList<IssueSignatureMessage> call() {
+				return getSignatureMessages(session, commitments, sessiontoken, clientIp);
+			}
+		});
+	}
 
+	private ArrayList<IssueSignatureMessage> getSignatureMessages(IssueSession session, IssueCommitmentMessage commitments,
+	                                                              String sessiontoken, String clientIp) {
 		logger.info("Received commitments, token: " + sessiontoken);
 
+		long start = System.currentTimeMillis();
 		IssuingRequest request = session.getRequest();
 		ProofList proofs = commitments.getCombinedProofs();
 		int credcount = request.getCredentials().size();
@@ -254,11 +282,16 @@ public class IssueResource extends BaseResource
 				sigs.add(issuer.issueSignatureNoCheck(
 						commitments, cred.convertToBigIntegers(metadataVersion), i, request.getNonce()));
 
-				ApiConfiguration conf = ApiConfiguration.getInstance();
-				Historian.getInstance().recordIssue(cred.getIdentifier().toString(), conf.getClientIp(servletRequest));
+				Historian.getInstance().recordIssue(cred.getIdentifier().toString(), clientIp);
 			}
 
-			session.setStatusDone();
+			if (session.getDisclosed() != null)
+				session.setResultSigner(resultSigner(session), resultReuseMillis(RESULT_VALIDITY));
+			if (!session.setStatusDone())
+				throw new ApiException(ApiError.UNEXPECTED_REQUEST); // Cancelled in the meantime
+			Metrics.record("issuance.latency_ms." + Metrics.bucket(proofs.size()) + "_credentials", System.currentTimeMillis() - start);
+			session.presignResult();
+			ResultJournal.recordResult(session);
 			return sigs;
 		} catch (InfoException e) {
 			e.printStackTrace();
@@ -286,18 +319,31 @@ public class IssueResource extends BaseResource
 	}
 
 	public DisclosureProofResult getproof(String sessiontoken) {
-		IssueSession session = sessions.getNonNullSession(sessiontoken);
+		IssueSession session = sessions.peekNonNullSession(sessiontoken);
 		DisclosureProofResult result = session.getDisclosed();
 		if (result == null)
 			throw new ApiException(ApiError.UNEXPECTED_REQUEST, "No attributes were disclosed in this session");
-		result.setServiceProviderData(session.getClientRequest().getData());
+		result.setServiceProviderData(session.getClientData());
 		return result;
 	}
 
 	@GET @Path("/{sessiontoken}/getproof")
 	@Produces(MediaType.TEXT_PLAIN)
 	public String gettoken(@PathParam("sessiontoken") String sessiontoken) throws KeyManagementException {
-		return signResultJwt(getproof(sessiontoken), 120, "issue_result");
+		IssueSession session = sessions.peekNonNullSession(sessiontoken);
+		if (session.getDisclosed() == null)
+			getproof(sessiontoken); // Throws the appropriate exception
+		return session.getSignedResult(resultSigner(session), resultReuseMillis(RESULT_VALIDITY));
+	}
+
+	private Callable<String> resultSigner(final IssueSession session) {
+		return new Callable<String>() {
+			@Override public String call() throws KeyManagementException {
+				DisclosureProofResult result = session.getDisclosed();
+				result.setServiceProviderData(session.getClientData());
+				return signResultJwt(result, RESULT_VALIDITY, "issue_result");
+			}
+		};
 	}
 
 }
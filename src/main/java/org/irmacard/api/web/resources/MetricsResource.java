@@ -0,0 +1,22 @@
+package org.irmacard.api.web.resources;
+
+import org.irmacard.api.web.Metrics;
+
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import java.util.Map;
+
+@Path("metrics")
+public class MetricsResource {
+	@Inject
+	public MetricsResource() {}
+
+	@GET
+	@Produces(MediaType.APPLICATION_JSON)
+	public Map<String, Long> get() {
+		return Metrics.snapshot();
+	}
+}
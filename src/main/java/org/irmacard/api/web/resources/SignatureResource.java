@@ -43,7 +43,7 @@ import org.irmacard.api.common.signatures.SignatureProofResult;
 import org.irmacard.api.common.util.GsonUtil;
 import org.irmacard.api.web.ApiConfiguration;
 import org.irmacard.api.web.GoBridge;
-import org.irmacard.api.web.sessions.IrmaSession.Status;
+import org.irmacard.api.web.sessions.ResultJournal;
 import org.irmacard.api.web.sessions.Sessions;
 import org.irmacard.api.web.sessions.SignatureSession;
 import org.irmacard.credentials.info.AttributeIdentifier;
@@ -54,11 +54,15 @@ import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
 import javax.ws.rs.*;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.MediaType;
 import java.security.KeyManagementException;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 @Path("signature")
 public class SignatureResource extends BaseResource
@@ -80,6 +84,30 @@ public class SignatureResource extends BaseResource
 		return super.newSession(jwt);
 	}
 
+	@POST @Path("/batch")
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	@Override
+	public List<BatchResult> newSessions(String[] jwts) {
+		return super.newSessions(jwts);
+	}
+
+	@POST @Path("/template")
+	@Consumes({MediaType.TEXT_PLAIN,MediaType.APPLICATION_JSON})
+	@Produces(MediaType.APPLICATION_JSON)
+	@Override
+	public Map<String, String> newTemplate(String jwt) {
+		return super.newTemplate(jwt);
+	}
+
+	@POST @Path("/template/{templateid}")
+	@Consumes({MediaType.TEXT_PLAIN,MediaType.APPLICATION_JSON})
+	@Produces(MediaType.APPLICATION_JSON)
+	@Override
+	public ClientQr newSession(@PathParam("templateid") String templateId, String jwt) {
+		return super.newSession(templateId, jwt);
+	}
+
 	@GET @Path("/{sessiontoken}")
 	@Produces(MediaType.APPLICATION_JSON)
 	@Override
@@ -99,8 +127,9 @@ public class SignatureResource extends BaseResource
 	@GET @Path("/{sessiontoken}/status")
 	@Produces(MediaType.APPLICATION_JSON)
 	@Override
-	public Status getStatus(@PathParam("sessiontoken") String sessiontoken) {
-		return super.getStatus(sessiontoken);
+	public void getStatus(@PathParam("sessiontoken") String sessiontoken, @QueryParam("wait") int wait,
+	                      @Suspended AsyncResponse response) {
+		super.getStatus(sessiontoken, wait, response);
 	}
 
 	@DELETE @Path("/{sessiontoken}")
@@ -109,7 +138,8 @@ public class SignatureResource extends BaseResource
 		super.delete(sessiontoken);
 	}
 
-	protected ClientQr create(SignatureClientRequest clientRequest, String verifier, String jwt) {
+	@Override
+	protected void validate(SignatureClientRequest clientRequest, String verifier) {
 		SignatureProofRequest request = clientRequest.getRequest();
 		if (request == null || request.getContent() == null ||
 				request.getContent().size() == 0 || request.getMessage() == null)
@@ -127,16 +157,27 @@ public class SignatureResource extends BaseResource
 
 		if (clientRequest.getValidity() == 0)
 			clientRequest.setValidity(DEFAULT_TOKEN_VALIDITY);
+	}
 
-		SignatureSession session = new SignatureSession();
-		return super.create(session, clientRequest, jwt);
+	@Override
+	protected SignatureSession createSession(SignatureClientRequest clientRequest) {
+		return new SignatureSession();
 	}
 
 	@POST @Path("/{sessiontoken}/proofs")
 	@Consumes(MediaType.APPLICATION_JSON)
 	@Produces(MediaType.APPLICATION_JSON)
-	public SignatureProofResult.Status proofs(IrmaSignedMessage signature, @PathParam("sessiontoken") String sessiontoken) {
-		SignatureSession session = sessions.getNonNullSession(sessiontoken);
+	public void proofs(final IrmaSignedMessage signature, @PathParam("sessiontoken") final String sessiontoken,
+	                   @Suspended AsyncResponse response) {
+		final SignatureSession session = sessions.getNonNullSession(sessiontoken);
+		process(session, response, new Callable<SignatureProofResult.Status>() {
+			@Override public SignatureProofResult.Status call() {
+				return verify(session, signature, sessiontoken);
+			}
+		});
+	}
+
+	private SignatureProofResult.Status verify(SignatureSession session, IrmaSignedMessage signature, String sessiontoken) {
 		SignatureProofResult result;
 		try {
 			SignatureProofRequest request = session.getRequest();
@@ -152,7 +193,11 @@ public class SignatureResource extends BaseResource
 			result = new SignatureProofResult();
 			result.setStatus(SignatureProofResult.Status.INVALID);
 		}
-		session.setResult(result);
+		session.setResultSigner(resultSigner(session), resultReuseMillis(session.getValidity()));
+		if (!session.setResult(result))
+			throw new ApiException(ApiError.UNEXPECTED_REQUEST); // Cancelled in the meantime
+		session.presignResult();
+		ResultJournal.recordResult(session);
 
 		logger.info("Received proofs, token: " + sessiontoken);
 
@@ -162,18 +207,28 @@ public class SignatureResource extends BaseResource
 	@GET @Path("/{sessiontoken}/getsignature")
 	@Produces(MediaType.TEXT_PLAIN)
 	public String getproof(@PathParam("sessiontoken") String sessiontoken) throws KeyManagementException {
-		SignatureSession session = sessions.getNonNullSession(sessiontoken);
-		SignatureProofResult result = session.getResult();
-
-		if (result == null) {
-			result = new SignatureProofResult();
+		// A session with a result is never a copy, so we can close it
+		SignatureSession session = sessions.peekNonNullSession(sessiontoken);
+		if (session.getResult() == null) {
+			SignatureProofResult result = new SignatureProofResult();
 			result.setStatus(SignatureProofResult.Status.WAITING);
-		} else {
-			session.close();
+			result.setServiceProviderData(session.getClientData());
+			return jwtSign(result, session.getValidity());
 		}
 
-		result.setServiceProviderData(session.getClientRequest().getData());
-		return jwtSign(result, session.getClientRequest().getValidity());
+		String jwt = session.getSignedResult(resultSigner(session), resultReuseMillis(session.getValidity()));
+		session.close();
+		return jwt;
+	}
+
+	private Callable<String> resultSigner(final SignatureSession session) {
+		return new Callable<String>() {
+			@Override public String call() throws KeyManagementException {
+				SignatureProofResult result = session.getResult();
+				result.setServiceProviderData(session.getClientData());
+				return jwtSign(result, session.getValidity());
+			}
+		};
 	}
 
 	@POST @Path("/checksignature")
@@ -0,0 +1,112 @@
+package org.irmacard.api.web.resources;
+
+import org.glassfish.jersey.media.sse.EventOutput;
+import org.glassfish.jersey.media.sse.OutboundEvent;
+import org.glassfish.jersey.media.sse.SseFeature;
+import org.irmacard.api.common.exceptions.ApiError;
+import org.irmacard.api.common.exceptions.ApiException;
+import org.irmacard.api.web.Metrics;
+import org.irmacard.api.web.sessions.IrmaSession;
+import org.irmacard.api.web.sessions.Sessions;
+import org.irmacard.api.web.sessions.StatusListener;
+import org.irmacard.api.web.sessions.StatusSender;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Streams the status updates of a session (CONNECTED, DONE, CANCELLED and TIMEOUT, as sent by the
+ * {@link org.irmacard.api.web.StatusSocket}) as server-sent events, for clients that cannot use
+ * websockets. No thread is held while a stream is waiting for the next update. Writing an event
+ * blocks until it was handed to the container ({@link EventOutput} has no asynchronous write), so
+ * the events are written by a {@link StatusSender}, which closes streams whose writes time out.
+ */
+@Path("status")
+public class StatusResource {
+	private static Logger logger = LoggerFactory.getLogger(StatusResource.class);
+
+	private static final AtomicLong open = Metrics.counter("status.event_streams");
+
+	@Inject
+	public StatusResource() {}
+
+	@GET @Path("/{sessiontoken}/events")
+	@Produces(SseFeature.SERVER_SENT_EVENTS)
+	public EventOutput events(@PathParam("sessiontoken") String sessiontoken) {
+		IrmaSession session = Sessions.findAnySession(sessiontoken);
+		if (session == null)
+			throw new ApiException(ApiError.SESSION_UNKNOWN);
+
+		EventOutput output = new EventOutput();
+		open.incrementAndGet();
+		new Stream(session, output).start();
+		return output;
+	}
+
+	/**
+	 * Writes an event for each status update of the session, until the session is finished.
+	 */
+	private static class Stream implements StatusListener {
+		private final IrmaSession session;
+		private final EventOutput output;
+		private final AtomicBoolean closed = new AtomicBoolean();
+		private final StatusSender sender = new StatusSender(new Runnable() {
+			@Override public void run() {
+				close();
+			}
+		});
+
+		Stream(IrmaSession session, EventOutput output) {
+			this.session = session;
+			this.output = output;
+		}
+
+		void start() {
+			// Clients that reconnect are first sent the current status, so they learn what they missed
+			session.addStatusListener(this);
+		}
+
+		@Override
+		public void onStatus(IrmaSession session, final Event event) {
+			sender.send(new Runnable() {
+				@Override public void run() {
+					if (event != Event.CLOSED && !send(event.name()))
+						return;
+					if (event != Event.CONNECTED)
+						close();
+				}
+			});
+		}
+
+		private boolean send(String status) {
+			try {
+				output.write(new OutboundEvent.Builder().name("status").data(String.class, status).build());
+				return true;
+			} catch (IOException e) {
+				logger.debug("Status event stream of session {} closed: {}", session.getSessionToken(), e.getMessage());
+				close();
+				return false;
+			}
+		}
+
+		private void close() {
+			if (!closed.compareAndSet(false, true))
+				return;
+			session.removeStatusListener(this);
+			open.decrementAndGet();
+			try {
+				output.close();
+			} catch (IOException e) {
+				logger.debug("Failed to close status event stream", e);
+			}
+		}
+	}
+}
@@ -33,9 +33,6 @@
 
 package org.irmacard.api.web.resources;
 
-
-import com.google.api.client.http.*;
-import com.google.api.client.http.javanet.NetHttpTransport;
 import io.jsonwebtoken.JwtBuilder;
 import io.jsonwebtoken.Jwts;
 import org.irmacard.api.common.AttributeDisjunction;
@@ -49,17 +46,19 @@ import org.irmacard.api.common.disclosure.ServiceProviderRequest;
 import org.irmacard.api.common.exceptions.ApiError;
 import org.irmacard.api.common.exceptions.ApiException;
 import org.irmacard.api.web.ApiConfiguration;
-import org.irmacard.api.web.sessions.IrmaSession.Status;
+import org.irmacard.api.web.Metrics;
+import org.irmacard.api.web.sessions.ResultJournal;
 import org.irmacard.api.web.sessions.Sessions;
 import org.irmacard.api.web.sessions.VerificationSession;
 import org.irmacard.credentials.idemix.proofs.ProofList;
 import org.irmacard.credentials.info.AttributeIdentifier;
-import org.irmacard.credentials.info.InfoException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
 import javax.ws.rs.*;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.MediaType;
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -68,6 +67,9 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.security.KeyManagementException;
 import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
 
 @Path("verification")
@@ -89,6 +91,30 @@ public class VerificationResource extends BaseResource
         return super.newSession(jwt);
     }
 
+    @POST @Path("/batch")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    @Override
+    public List<BatchResult> newSessions(String[] jwts) {
+        return super.newSessions(jwts);
+    }
+
+    @POST @Path("/template")
+    @Consumes({MediaType.TEXT_PLAIN,MediaType.APPLICATION_JSON})
+    @Produces(MediaType.APPLICATION_JSON)
+    @Override
+    public Map<String, String> newTemplate(String jwt) {
+        return super.newTemplate(jwt);
+    }
+
+    @POST @Path("/template/{templateid}")
+    @Consumes({MediaType.TEXT_PLAIN,MediaType.APPLICATION_JSON})
+    @Produces(MediaType.APPLICATION_JSON)
+    @Override
+    public ClientQr newSession(@PathParam("templateid") String templateId, String jwt) {
+        return super.newSession(templateId, jwt);
+    }
+
     @GET @Path("/{sessiontoken}")
     @Produces(MediaType.APPLICATION_JSON)
     @Override
@@ -108,8 +134,9 @@ public class VerificationResource extends BaseResource
     @GET @Path("/{sessiontoken}/status")
     @Produces(MediaType.APPLICATION_JSON)
     @Override
-    public Status getStatus(@PathParam("sessiontoken") String sessiontoken) {
-        return super.getStatus(sessiontoken);
+    public void getStatus(@PathParam("sessiontoken") String sessiontoken, @QueryParam("wait") int wait,
+                          @Suspended AsyncResponse response) {
+        super.getStatus(sessiontoken, wait, response);
     }
 
     @DELETE @Path("/{sessiontoken}")
@@ -119,7 +146,7 @@ public class VerificationResource extends BaseResource
     }
 
     @Override
-    protected ClientQr create(ServiceProviderRequest spRequest, String verifier, String jwt) {
+    protected void validate(ServiceProviderRequest spRequest, String verifier) {
         DisclosureProofRequest request = spRequest.getRequest();
 
         if (request == null || request.getContent() == null || request.getContent().size() == 0)
@@ -137,41 +164,62 @@ public class VerificationResource extends BaseResource
 
         if (spRequest.getValidity() == 0)
             spRequest.setValidity(DEFAULT_TOKEN_VALIDITY);
+    }
 
-        VerificationSession session = new VerificationSession();
-        return super.create(session, spRequest, jwt);
+    @Override
+    protected VerificationSession createSession(ServiceProviderRequest spRequest) {
+        return new VerificationSession();
     }
 
     @POST @Path("/{sessiontoken}/proofs")
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
-    public DisclosureProofResult.Status proofs(IrmaDisclosure message, @PathParam("sessiontoken") String sessiontoken)
-            throws InfoException {
-        VerificationSession session = sessions.getNonNullSession(sessiontoken);
+    public void proofs(final IrmaDisclosure message, @PathParam("sessiontoken") final String sessiontoken,
+                       @Suspended AsyncResponse response) {
+        final VerificationSession session = sessions.getNonNullSession(sessiontoken);
+        process(session, response, new Callable<DisclosureProofResult.Status>() {
+            @Override public DisclosureProofResult.Status call() {
+                return verify(session, message, sessiontoken);
+            }
+        });
+    }
+
+    private DisclosureProofResult.Status verify(VerificationSession session, IrmaDisclosure message, String sessiontoken) {
         ProofList proofs = message.getProofs();
 
         DisclosureProofResult result;
+        long start = System.currentTimeMillis();
         try {
             proofs.populatePublicKeyArray();
+            // The proofs share a single challenge and are verified together by the request, so they
+            // cannot be verified in parallel here; the latency metric shows what that costs per size
             result = session.getRequest().verify(proofs);
+            Metrics.record("verification.latency_ms." + Metrics.bucket(proofs.size()) + "_credentials", System.currentTimeMillis() - start);
         } catch (Exception e) {
             // Everything in the verification has to be exactly right; if not, we don't accept the proofs as valid
             e.printStackTrace();
             result = new DisclosureProofResult();
             result.setStatus(DisclosureProofResult.Status.INVALID);
         }
-        session.setResult(result);
+        // The client request is released once the session is done, so fetch this first
+        ServiceProviderRequest spRequest = session.getClientRequest();
+        String callbackUrl = spRequest != null ? spRequest.getCallbackUrl() : null;
+        session.setResultSigner(resultSigner(session), resultReuseMillis(session.getValidity()));
+        if (!session.setResult(result))
+            throw new ApiException(ApiError.UNEXPECTED_REQUEST); // Cancelled in the meantime
+        session.presignResult();
+        ResultJournal.recordResult(session);
 
         logger.info("Received proofs, token: " + sessiontoken);
 
         // If a callback url is supplied, call it
-        if (session.getClientRequest().getCallbackUrl() != null) {
-            String callbackUrl = session.getClientRequest().getCallbackUrl() + "/" + sessiontoken;
+        if (callbackUrl != null) {
+            callbackUrl = callbackUrl + "/" + sessiontoken;
             logger.info("Posting proof to: " + callbackUrl);
 
             try {
-                sendProofResult(new URL(callbackUrl), gettoken(sessiontoken));
-            } catch (MalformedURLException|KeyManagementException e) {
+                postResult(session, new URL(callbackUrl));
+            } catch (MalformedURLException e) {
                 e.printStackTrace();
             }
         }
@@ -179,10 +227,30 @@ public class VerificationResource extends BaseResource
         return result.getStatus();
     }
 
+    /**
+     * Post the signed result to the callback URL once it is signed, and close the session. This does
+     * not wait for the signature: it is made on the crypto executor, and handed to the dispatcher from there.
+     */
+    private void postResult(final VerificationSession session, final URL url) {
+        session.whenResultSigned(new Runnable() {
+            @Override public void run() {
+                try {
+                    // Not through gettoken(): a status socket may have closed the session already
+                    String jwt = session.getSignedResult();
+                    session.close();
+                    ResultJournal.dispatchCallback(session.getSessionToken(), url, jwt);
+                } catch (KeyManagementException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
     @GET @Path("/{sessiontoken}/getunsignedproof")
     @Produces(MediaType.APPLICATION_JSON)
     public DisclosureProofResult getproof(@PathParam("sessiontoken") String sessiontoken) {
-        VerificationSession session = sessions.getNonNullSession(sessiontoken);
+        // A session with a result is never a copy, so we can close it
+        VerificationSession session = sessions.peekNonNullSession(sessiontoken);
         DisclosureProofResult result = session.getResult();
 
         if (result == null) {
@@ -192,36 +260,30 @@ public class VerificationResource extends BaseResource
             session.close();
         }
 
-        result.setServiceProviderData(session.getClientRequest().getData());
+        result.setServiceProviderData(session.getClientData());
         return result;
     }
 
     @GET @Path("/{sessiontoken}/getproof")
     @Produces(MediaType.TEXT_PLAIN)
     public String gettoken(@PathParam("sessiontoken") String sessiontoken) throws KeyManagementException {
-        VerificationSession session = sessions.getNonNullSession(sessiontoken);
-        DisclosureProofResult result = getproof(sessiontoken);
-        return signResultJwt(result, session.getClientRequest().getValidity(), "disclosure_result");
-    }
-
-    // TODO: move to some kind of 'util class'?
-    private static void sendProofResult(final URL url, String jwt) {
-        final HttpTransport transport = new NetHttpTransport.Builder().build();
-        final HttpContent content = new ByteArrayContent("text/plain", jwt.getBytes());
+        VerificationSession session = sessions.peekNonNullSession(sessiontoken);
+        if (session.getResult() == null) { // Still waiting, getproof() says so
+            return signResultJwt(getproof(sessiontoken), session.getValidity(), "disclosure_result");
+        }
 
-        new Thread() {
-            @Override
-            public void run() {
-                try {
-                    HttpRequest proofResultRequest = transport.createRequestFactory().buildPostRequest(new GenericUrl(url), content);
-                    HttpResponse response = proofResultRequest.execute();
-                    logger.info("Proof sent to callbackURL");
-                } catch (Exception e) {
-                    logger.error("Sending proof failed: {}", e.getMessage());
-                    e.printStackTrace();
-                }
+        String jwt = session.getSignedResult(resultSigner(session), resultReuseMillis(session.getValidity()));
+        session.close();
+        return jwt;
+    }
 
+    private Callable<String> resultSigner(final VerificationSession session) {
+        return new Callable<String>() {
+            @Override public String call() throws KeyManagementException {
+                DisclosureProofResult result = session.getResult();
+                result.setServiceProviderData(session.getClientData());
+                return signResultJwt(result, session.getValidity(), "disclosure_result");
             }
-        }.start();
+        };
     }
 }
@@ -0,0 +1,47 @@
+package org.irmacard.api.web.sessions;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps all sessions as ordinary objects on the heap.
+ */
+public class HeapSessionStore<T extends IrmaSession> implements SessionStore<T> {
+	/**
+	 * Sessions are added and removed concurrently by Jetty worker threads, the session
+	 * expiry timers and websocket callbacks. A {@link ConcurrentHashMap} never locks on
+	 * reads and only locks a single bin on writes, so it scales with the number of cores.
+	 */
+	private final ConcurrentHashMap<String, T> sessions = new ConcurrentHashMap<>();
+
+	@Override
+	public void put(T session) {
+		sessions.put(session.getSessionToken(), session);
+	}
+
+	@Override
+	public T get(String token) {
+		return sessions.get(token);
+	}
+
+	@Override
+	public T peek(String token) {
+		return sessions.get(token);
+	}
+
+	@Override
+	public T remove(String token) {
+		return sessions.remove(token);
+	}
+
+	@Override
+	public int size() {
+		return sessions.size();
+	}
+
+	@Override
+	public Collection<T> values() {
+		return new ArrayList<>(sessions.values());
+	}
+}
@@ -4,41 +4,97 @@ import org.irmacard.api.common.ClientRequest;
 import org.irmacard.api.common.ProtocolVersion;
 import org.irmacard.api.common.SessionRequest;
 import org.irmacard.api.web.ApiConfiguration;
+import org.irmacard.api.web.CryptoExecutor;
+import org.irmacard.api.web.Metrics;
 import org.irmacard.api.web.StatusSocket;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import java.security.KeyManagementException;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 public abstract class IrmaSession<T extends ClientRequest<S>, S extends SessionRequest> {
 	private static Logger logger = LoggerFactory.getLogger(IrmaSession.class);
 
 	private String sessionToken;
-	private StatusSocket statusSocket;
-	private Timer timer;
+	private final transient AtomicReference<SessionExpiry.Timeout> expiry = new AtomicReference<>();
+	private transient volatile long expiresAt;
 	private T clientRequest;
 	private String jwt;
 	private ProtocolVersion version;
+	private String clientData; // Set when the session is compacted
+	private String quotaClient; // Set when the session is counted against the session limits
+	private final transient AtomicBoolean closed = new AtomicBoolean();
+	private final transient AtomicReference<SignedResult> signedResult = new AtomicReference<>();
+	private transient volatile Callable<String> resultSigner;
+	private transient volatile long resultReuseMillis;
+	private final transient ConcurrentLinkedQueue<StatusMailbox> listeners = new ConcurrentLinkedQueue<>();
 
-	private class RemovalTask extends TimerTask {
+	private class RemovalTask implements Runnable {
 		@Override
 		public void run() {
 			logger.warn("Session " + sessionToken + " timeout, removing");
-			if (statusSocket != null)
-				statusSocket.sendTimeout();
+			broadcast(StatusListener.Event.TIMEOUT);
 			close();
 		}
 	}
 
-	private Status status = Status.INITIALIZED;
+	/**
+	 * Status transitions are compare-and-set, so that when concurrent requests race for the same
+	 * transition exactly one of them wins. The allowed transitions are INITIALIZED -> CONNECTED ->
+	 * DONE, and from INITIALIZED or CONNECTED to CANCELLED.
+	 */
+	private final transient AtomicReference<Status> status = new AtomicReference<>(Status.INITIALIZED);
+	private final transient AtomicBoolean processing = new AtomicBoolean();
 
 	public enum Status {
 		INITIALIZED, CONNECTED, CANCELLED, DONE
 	}
 
+	/**
+	 * A result JWT that is being or has been signed, when its signing started, and what to do once it
+	 * is signed.
+	 */
+	private static class SignedResult {
+		final FutureTask<String> jwt;
+		final long signedAt = System.currentTimeMillis();
+		private final ConcurrentLinkedQueue<Runnable> callbacks = new ConcurrentLinkedQueue<>();
+
+		SignedResult(Callable<String> signer) {
+			jwt = new FutureTask<String>(signer) {
+				@Override protected void done() {
+					runCallbacks();
+				}
+			};
+		}
+
+		void whenDone(Runnable callback) {
+			callbacks.add(callback);
+			if (jwt.isDone())
+				runCallbacks();
+		}
+
+		private void runCallbacks() {
+			Runnable callback;
+			while ((callback = callbacks.poll()) != null) {
+				try {
+					callback.run();
+				} catch (RuntimeException e) {
+					logger.error("Signed result callback failed", e);
+				}
+			}
+		}
+	}
+
 	public IrmaSession() {
-		this.sessionToken = Sessions.generateSessionToken();
+		this.sessionToken = Sessions.generateSessionToken(getClass());
 	}
 
 	/**
@@ -52,11 +108,42 @@ public abstract class IrmaSession<T extends ClientRequest<S>, S extends SessionR
 
 	private void delayRemoval(int timeout) {
 		logger.info("Delaying removal of session " + sessionToken + " with " + timeout + " seconds");
+		scheduleRemoval(timeout * 1000L);
+	}
 
-		if (timer != null)
-			timer.cancel();
-		timer = new Timer();
-		timer.schedule(new RemovalTask(), timeout * 1000);
+	private void scheduleRemoval(long millis) {
+		expiresAt = System.currentTimeMillis() + millis;
+		SessionExpiry.Timeout previous = expiry.getAndSet(
+				SessionExpiry.getInstance().schedule(new RemovalTask(), millis));
+		if (previous != null)
+			previous.cancel();
+	}
+
+	/**
+	 * Stop the removal timer of this session, e.g. because its store takes care of its expiry
+	 * while it is serialized. See {@link #getRemainingMillis()}.
+	 */
+	void suspendRemoval() {
+		SessionExpiry.Timeout timeout = expiry.getAndSet(null);
+		if (timeout != null)
+			timeout.cancel();
+	}
+
+	/**
+	 * @return How long this session has left before it is removed
+	 */
+	long getRemainingMillis() {
+		return Math.max(expiresAt - System.currentTimeMillis(), 0);
+	}
+
+	/**
+	 * Restore the transient state of a session that was deserialized by {@link SessionCodec}.
+	 */
+	void restore(Status status, long remainingMillis) {
+		this.status.set(status);
+		if (version != null && clientRequest != null)
+			getRequest().setProtocolVersion(version);
+		scheduleRemoval(Math.max(remainingMillis, 0));
 	}
 
 	public T getClientRequest() {
@@ -68,6 +155,14 @@ public abstract class IrmaSession<T extends ClientRequest<S>, S extends SessionR
 		delayRemoval(clientRequest.getTimeout());
 	}
 
+	/**
+	 * @return The data field of the client request, which survives {@link #compact()}
+	 */
+	public String getClientData() {
+		T request = clientRequest;
+		return request != null ? request.getData() : clientData;
+	}
+
 	public String getJwt() {
 		return jwt;
 	}
@@ -94,55 +189,291 @@ public abstract class IrmaSession<T extends ClientRequest<S>, S extends SessionR
 		return sessionToken;
 	}
 
-	public void setStatusSocket(StatusSocket socket) {
-		this.statusSocket = socket;
+	/**
+	 * Send the status updates of this session to the specified listener, starting with the current
+	 * status (unless it is INITIALIZED).
+	 */
+	public void addStatusListener(StatusListener listener) {
+		StatusMailbox mailbox = new StatusMailbox(this, listener);
+		listeners.add(mailbox);
+
+		// Events that were broadcast before the listener was added are posted here; the
+		// mailbox drops duplicates and events that arrive out of order
+		StatusListener.Event current = StatusListener.Event.of(status.get());
+		if (current != null)
+			mailbox.post(current);
+		if (closed.get())
+			mailbox.post(StatusListener.Event.CLOSED);
 	}
 
-	public void setStatusConnected() {
+	public void removeStatusListener(StatusListener listener) {
+		for (Iterator<StatusMailbox> it = listeners.iterator(); it.hasNext(); )
+			if (it.next().listener == listener)
+				it.remove();
+	}
+
+	private void broadcast(StatusListener.Event event) {
+		for (StatusMailbox mailbox : listeners)
+			mailbox.post(event);
+	}
+
+	/**
+	 * Move the session from INITIALIZED to CONNECTED.
+	 * @return false if the session was not INITIALIZED, e.g. because a concurrent request won
+	 */
+	public boolean setStatusConnected() {
+		if (!status.compareAndSet(Status.INITIALIZED, Status.CONNECTED))
+			return false;
+
 		delayRemoval(ApiConfiguration.getInstance().getTokenResponseTimeout());
-		if (statusSocket != null)
-			statusSocket.sendConnected();
-		status = Status.CONNECTED;
+		broadcast(StatusListener.Event.CONNECTED);
+		return true;
 	}
 
-	public void setStatusDone() {
+	/**
+	 * Claim the right to process the token's response (i.e., to verify its proofs or to sign its
+	 * credentials) in this session. Only the first caller succeeds, so that concurrent duplicate
+	 * requests can be rejected before they do any expensive work.
+	 * @return false if the session is not CONNECTED or if it was already claimed
+	 */
+	public boolean startProcessing() {
+		return status.get() == Status.CONNECTED && processing.compareAndSet(false, true);
+	}
+
+	/**
+	 * Give up the claim obtained by {@link #startProcessing()}, so that the token can send its
+	 * response again. If the session was cancelled while it was claimed, it is compacted now.
+	 */
+	public void stopProcessing() {
+		processing.set(false);
+		if (status.get() == Status.CANCELLED)
+			compact();
+	}
+
+	/**
+	 * Move the session from CONNECTED to DONE.
+	 * @return false if the session was not CONNECTED, e.g. because it was cancelled meanwhile
+	 */
+	public boolean setStatusDone() {
+		if (!status.compareAndSet(Status.CONNECTED, Status.DONE))
+			return false;
+
 		delayRemoval(ApiConfiguration.getInstance().getClientGetTimeout());
-		if (statusSocket != null)
-			statusSocket.sendDone();
-		status = Status.DONE;
+		compact();
+		broadcast(StatusListener.Event.DONE);
+		return true;
 	}
 
-	public void setStatusCancelled() {
+	/**
+	 * Move the session from INITIALIZED or CONNECTED to CANCELLED.
+	 * @return false if the session was already DONE or CANCELLED
+	 */
+	public boolean setStatusCancelled() {
+		if (!status.compareAndSet(Status.CONNECTED, Status.CANCELLED)
+				&& !status.compareAndSet(Status.INITIALIZED, Status.CANCELLED))
+			return false;
+
 		delayRemoval(ApiConfiguration.getInstance().getClientGetTimeout());
-		if (statusSocket != null)
-			statusSocket.sendCancelled();
-		status = Status.CANCELLED;
+		// A claimed response may still be processed and need the request; then stopProcessing() compacts
+		if (!processing.get())
+			compact();
+		broadcast(StatusListener.Event.CANCELLED);
+		return true;
+	}
+
+	/**
+	 * Release everything that is no longer needed once the session is finished, i.e., the client
+	 * request and its JWT. Afterwards {@link #getRequest()} and {@link #getClientRequest()} are
+	 * unavailable; subclasses keep their result, and the data field of the client request is
+	 * kept. Subclasses that keep more state should release it here as well.
+	 */
+	protected void compact() {
+		T request = clientRequest;
+		if (request == null)
+			return;
+
+		clientData = request.getData();
+		clientRequest = null;
+
+		// The request is decoded from the JWT, so it takes at least as many bytes as
+		// the JWT itself, which is stored with two bytes per character
+		String jwt = this.jwt;
+		this.jwt = null;
+		long saved = jwt == null ? 0 : 3L * jwt.length();
+		Metrics.increment("sessions.compaction.count");
+		Metrics.add("sessions.compaction.bytes_saved_estimate", saved);
 	}
 
 	public Status getStatus() {
-		return status;
+		return status.get();
+	}
+
+	/**
+	 * @return whether nothing has happened yet in this session, and nobody is listening to it
+	 */
+	boolean isIdle() {
+		return status.get() == Status.INITIALIZED && listeners.isEmpty();
 	}
 
 	/**
-	 * Returns whether the status socket is still connected. If it is, we can
+	 * Returns whether a status socket is still connected. If it is, we can
 	 * safely close it after sending a CANCELLED update.
 	 *
-	 * @return if the status socket is open
+	 * @return if a status socket is open
 	 */
 	public boolean isStatusSocketConnected() {
-		return statusSocket != null && statusSocket.isSocketConnected();
+		for (StatusMailbox mailbox : listeners)
+			if (mailbox.listener instanceof StatusSocket && ((StatusSocket) mailbox.listener).isSocketConnected())
+				return true;
+		return false;
+	}
+
+	/**
+	 * Set how the result JWT of this session is signed, so that it can be obtained with
+	 * {@link #getSignedResult()}. Should be called before the session is DONE, so that status
+	 * listeners that are told so can rely on it.
+	 * @param maxAgeMillis See {@link #getSignedResult(Callable, long)}
+	 */
+	public void setResultSigner(Callable<String> signer, long maxAgeMillis) {
+		resultReuseMillis = maxAgeMillis;
+		resultSigner = signer;
+	}
+
+	/**
+	 * Start signing the result JWT of this session on the {@link CryptoExecutor} with the signer from
+	 * {@link #setResultSigner(Callable, long)}, so that it is ready when it is fetched, pushed or posted
+	 * to the callback. Should be called once the result is final.
+	 */
+	public void presignResult() {
+		Callable<String> signer = resultSigner;
+		if (signer == null)
+			return;
+		SignedResult result = new SignedResult(signer);
+		signedResult.set(result);
+		try {
+			CryptoExecutor.getExecutor().execute(result.jwt);
+		} catch (RejectedExecutionException e) {
+			signedResult.compareAndSet(result, null); // It will be signed when it is fetched
+		}
+	}
+
+	/**
+	 * Get the signed result JWT of this session. The JWT is signed at most once: concurrent callers
+	 * wait for the same signature, which may already have been started by {@link #presignResult()}.
+	 * It is signed anew if the existing signature is older than the specified age, so that the
+	 * expiry date of the JWT stays meaningful.
+	 */
+	public String getSignedResult(Callable<String> signer, long maxAgeMillis) throws KeyManagementException {
+		while (true) {
+			SignedResult current = signedResult.get();
+			if (current == null || current.signedAt + maxAgeMillis < System.currentTimeMillis()) {
+				SignedResult fresh = new SignedResult(signer);
+				if (!signedResult.compareAndSet(current, fresh))
+					continue;
+				current = fresh;
+			} else {
+				Metrics.increment("results.presigned.reused");
+			}
+
+			// Sign it on this thread if no other thread has started doing so yet
+			current.jwt.run();
+			try {
+				return current.jwt.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				signedResult.compareAndSet(current, null); // Try again next time
+				if (e.getCause() instanceof KeyManagementException)
+					throw (KeyManagementException) e.getCause();
+				if (e.getCause() instanceof RuntimeException)
+					throw (RuntimeException) e.getCause();
+				throw new RuntimeException(e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Run the specified callback once the result JWT is signed, so that {@link #getSignedResult()} then
+	 * returns it without waiting. The callback runs on the thread that signed it, so it should only
+	 * hand the JWT on. If the JWT is not being signed in the background (e.g. because the
+	 * {@link CryptoExecutor} is full, or the session has no signer) the callback is run right away.
+	 */
+	public void whenResultSigned(Runnable callback) {
+		SignedResult current = signedResult.get();
+		if (current == null) {
+			presignResult();
+			current = signedResult.get();
+		}
+		if (current == null)
+			callback.run();
+		else
+			current.whenDone(callback);
 	}
 
 	/**
-	 * Close and remove the session. This also causes the socket to be closed
+	 * @return The signed result JWT of this session if it has been signed already (e.g. after
+	 * {@link #whenResultSigned(Runnable)} ran its callback) and may still be reused; otherwise null.
+	 * Never signs or waits.
+	 */
+	public String getPresignedResult() {
+		SignedResult current = signedResult.get();
+		if (current == null || !current.jwt.isDone()
+				|| current.signedAt + resultReuseMillis < System.currentTimeMillis())
+			return null;
+		try {
+			return current.jwt.get();
+		} catch (InterruptedException|ExecutionException e) {
+			logger.error("Failed to sign result of session " + sessionToken, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Get the signed result JWT of this session, using the signer from {@link #setResultSigner(Callable, long)}.
+	 * @return null if there is no such signer, e.g. because the session was restored from disk
+	 */
+	public String getSignedResult() throws KeyManagementException {
+		Callable<String> signer = resultSigner;
+		if (signer == null)
+			return null;
+		return getSignedResult(signer, resultReuseMillis);
+	}
+
+	/**
+	 * Count this session against the session limits of the specified client.
+	 * @param client The JWT key identifier of the client, or null for unsigned requests
+	 * @throws org.irmacard.api.web.SessionLimitException If this would exceed one of the limits
+	 */
+	public void admit(String client) {
+		quotaClient = SessionQuota.acquire(client);
+	}
+
+	String getQuotaClient() {
+		return quotaClient;
+	}
+
+	public boolean isClosed() {
+		return closed.get();
+	}
+
+	/**
+	 * Close and remove the session. This also causes the socket to be closed.
+	 * Closing a session more than once has no effect.
 	 */
 	public void close() {
+		if (!closed.compareAndSet(false, true))
+			return;
+
 		logger.info("Closing session " + sessionToken);
 
-		timer.cancel();
+		suspendRemoval();
 		Sessions.removeSession(sessionToken);
+		ResultJournal.recordClosed(sessionToken);
+		if (quotaClient != null)
+			SessionQuota.release(quotaClient);
 
-		if (statusSocket != null)
-			statusSocket.close();
+		broadcast(StatusListener.Event.CLOSED);
+		listeners.clear(); // Listeners added from now on are sent CLOSED by addStatusListener()
 	}
 }
@@ -11,6 +11,13 @@ public class IssueSession extends IrmaSession<IdentityProviderRequest, IssuingRe
 
 	private DisclosureProofResult disclosed;
 
+	/**
+	 * For deserialization by {@link SessionCodec}, which needs the field initializers to run.
+	 */
+	private IssueSession() {
+		super();
+	}
+
 	public IssueSession(boolean isDistributed) {
 		super();
 		this.isDistributed = isDistributed;
@@ -32,6 +39,12 @@ public class IssueSession extends IrmaSession<IdentityProviderRequest, IssuingRe
 		return isDistributed;
 	}
 
+	@Override
+	protected void compact() {
+		commitments = null;
+		super.compact();
+	}
+
 	public DisclosureProofResult getDisclosed() {
 		return disclosed;
 	}
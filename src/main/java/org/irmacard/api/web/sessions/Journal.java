@@ -0,0 +1,342 @@
+package org.irmacard.api.web.sessions;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of records, stored in memory-mapped segment files of a fixed size. Each record
+ * consists of its length, a CRC32 checksum and its payload; a record of length 0, or one whose
+ * checksum does not match (i.e., that was torn by a crash), marks the end of a segment.
+ *
+ * Appending only copies the record into the mapped segment. A background thread writes appended
+ * records to disk, and callers that need a record to be durable wait for it with {@link #sync(long)}.
+ * That thread also writes and closes full segments, so that appending never waits for the disk.
+ * All records that were appended while the thread was writing are written together next, so that
+ * concurrent callers share the cost of a single fsync (group commit).
+ *
+ * Callers can retain the segment to which a record was appended while the record is still needed,
+ * and release it afterwards. Segments are deleted once they are no longer retained, oldest first,
+ * so that records that settle records in older segments are never deleted before those.
+ *
+ * The records may contain personal data (e.g. disclosed attributes), so the directory and the segment
+ * files are made readable by the owner only.
+ */
+class Journal implements Closeable {
+	private static final String PREFIX = "journal-";
+	private static final String SUFFIX = ".log";
+	private static final int HEADER_SIZE = 8;
+
+	interface Visitor {
+		void record(byte[] payload) throws IOException;
+	}
+
+	/**
+	 * Where a record was appended.
+	 */
+	static class Position {
+		final long segment;
+		final long sequence;
+
+		Position(long segment, long sequence) {
+			this.segment = segment;
+			this.sequence = sequence;
+		}
+	}
+
+	private final File directory;
+	private final int segmentSize;
+	private final ArrayList<File> existing = new ArrayList<>();
+
+	/**
+	 * A full segment that the flusher still has to write to disk and close.
+	 */
+	private static class Full {
+		final RandomAccessFile file;
+		final MappedByteBuffer buffer;
+
+		Full(RandomAccessFile file, MappedByteBuffer buffer) {
+			this.file = file;
+			this.buffer = buffer;
+		}
+	}
+
+	// All of the following are guarded by this
+	private final TreeMap<Long, int[]> retained = new TreeMap<>();
+	private final ArrayList<Full> full = new ArrayList<>();
+	private long segment;
+	private RandomAccessFile file;
+	private MappedByteBuffer buffer;
+	private long appended;
+	private long durable;
+	private boolean closed;
+
+	private final Thread flusher;
+
+	/**
+	 * Open the journal in the specified directory. The records that are already in it can be read
+	 * with {@link #replay(Visitor)}; new records are appended to a new segment.
+	 */
+	Journal(File directory, int segmentSize) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Cannot create journal directory " + directory);
+		ownerOnly(directory);
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+
+		long last = 0;
+		for (File f : segmentFiles(directory)) {
+			existing.add(f);
+			last = segmentNumber(f);
+			retained.put(last, new int[] {1}); // Until finishReplay()
+		}
+		openSegment(last + 1);
+
+		flusher = new Thread(new Runnable() {
+			@Override public void run() {
+				flush();
+			}
+		}, "journal-sync");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	private static File[] segmentFiles(File directory) {
+		File[] files = directory.listFiles(new FilenameFilter() {
+			@Override public boolean accept(File dir, String name) {
+				return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+			}
+		});
+		if (files == null)
+			return new File[0];
+
+		ArrayList<File> sorted = new ArrayList<>();
+		Collections.addAll(sorted, files);
+		Collections.sort(sorted, new Comparator<File>() {
+			@Override public int compare(File a, File b) {
+				return Long.compare(segmentNumber(a), segmentNumber(b));
+			}
+		});
+		return sorted.toArray(new File[sorted.size()]);
+	}
+
+	private static long segmentNumber(File f) {
+		String name = f.getName();
+		return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+	}
+
+	private File segmentFile(long number) {
+		return new File(directory, String.format("%s%016d%s", PREFIX, number, SUFFIX));
+	}
+
+	private static void ownerOnly(File f) {
+		f.setReadable(false, false);
+		f.setWritable(false, false);
+		f.setReadable(true, true);
+		f.setWritable(true, true);
+		if (f.isDirectory()) {
+			f.setExecutable(false, false);
+			f.setExecutable(true, true);
+		}
+	}
+
+	private void openSegment(long number) throws IOException {
+		segment = number;
+		File f = segmentFile(number);
+		file = new RandomAccessFile(f, "rw");
+		ownerOnly(f);
+		file.setLength(segmentSize);
+		buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+		retained.put(number, new int[1]);
+	}
+
+	/**
+	 * Pass the payloads of all records that were in the journal when it was opened to the visitor,
+	 * in the order in which they were appended. Those segments are kept until {@link #finishReplay()}.
+	 */
+	void replay(Visitor visitor) throws IOException {
+		for (File f : existing) {
+			try (RandomAccessFile in = new RandomAccessFile(f, "r")) {
+				MappedByteBuffer data = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+				CRC32 crc = new CRC32();
+				while (data.remaining() >= HEADER_SIZE) {
+					int length = data.getInt();
+					int checksum = data.getInt();
+					if (length <= 0 || length > data.remaining())
+						break;
+					byte[] payload = new byte[length];
+					data.get(payload);
+					crc.reset();
+					crc.update(payload, 0, length);
+					if ((int) crc.getValue() != checksum)
+						break;
+					visitor.record(payload);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Allow the segments that were in the journal when it was opened to be deleted. Should be called
+	 * once the records from them that are still needed have been appended again and synced.
+	 */
+	synchronized void finishReplay() {
+		for (File f : existing)
+			release(segmentNumber(f));
+		existing.clear();
+	}
+
+	/**
+	 * Append a record. It is not necessarily durable until {@link #sync(long)} returns.
+	 * @param retain Whether to retain the segment of the record until {@link #release(long)} is called
+	 */
+	synchronized Position append(byte[] payload, boolean retain) throws IOException {
+		if (closed)
+			throw new IOException("Journal closed");
+		if (payload.length == 0 || payload.length > segmentSize - 2 * HEADER_SIZE)
+			throw new IOException("Invalid journal record size " + payload.length);
+
+		if (buffer.remaining() < HEADER_SIZE + payload.length)
+			rotate();
+
+		CRC32 crc = new CRC32();
+		crc.update(payload, 0, payload.length);
+		buffer.putInt(payload.length);
+		buffer.putInt((int) crc.getValue());
+		buffer.put(payload);
+		if (retain)
+			retained.get(segment)[0]++;
+
+		appended++;
+		notifyAll();
+		return new Position(segment, appended);
+	}
+
+	private void rotate() throws IOException {
+		full.add(new Full(file, buffer)); // The flusher writes it to disk before the current segment
+		openSegment(segment + 1);
+		deleteReleased();
+	}
+
+	/**
+	 * Wait until the record with the specified sequence number, and all records before it, are on disk.
+	 */
+	synchronized void sync(long sequence) throws IOException {
+		while (durable < sequence) {
+			if (!flusher.isAlive())
+				throw new IOException("Journal closed");
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for journal sync");
+			}
+		}
+	}
+
+	synchronized void release(long segment) {
+		int[] count = retained.get(segment);
+		if (count != null && count[0] > 0)
+			count[0]--;
+		deleteReleased();
+	}
+
+	/**
+	 * Delete the oldest segments, up to the first one that is still retained or the current one.
+	 */
+	synchronized void deleteReleased() {
+		for (Iterator<Map.Entry<Long, int[]>> it = retained.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry<Long, int[]> entry = it.next();
+			if (entry.getKey() == segment || entry.getValue()[0] > 0)
+				break;
+			File f = segmentFile(entry.getKey());
+			if (f.exists() && !f.delete())
+				break;
+			it.remove();
+		}
+	}
+
+	/**
+	 * @return The number of segment files, including the current one
+	 */
+	synchronized int segmentCount() {
+		return retained.size();
+	}
+
+	private void flush() {
+		while (true) {
+			long target;
+			MappedByteBuffer toForce;
+			ArrayList<Full> toClose;
+			synchronized (this) {
+				while (!closed && durable == appended) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (durable == appended)
+					return; // Closed, and everything is on disk
+				target = appended;
+				toForce = buffer;
+				toClose = new ArrayList<>(full);
+				full.clear();
+			}
+
+			// Oldest first, so that records that were appended earlier are on disk no later than newer ones
+			for (Full segment : toClose) {
+				segment.buffer.force();
+				closeQuietly(segment.file);
+			}
+			toForce.force();
+
+			synchronized (this) {
+				durable = Math.max(durable, target);
+				notifyAll();
+			}
+		}
+	}
+
+	private static void closeQuietly(RandomAccessFile file) {
+		try {
+			file.close();
+		} catch (IOException e) {
+			// The mapping stays valid, and everything was written through it
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+			notifyAll();
+		}
+		try {
+			flusher.join(); // It writes the remaining records before it stops
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			for (Full segment : full) { // Only if the flusher died
+				segment.buffer.force();
+				closeQuietly(segment.file);
+			}
+			full.clear();
+			file.close();
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package org.irmacard.api.web.sessions;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.irmacard.api.common.ClientQr;
+import org.irmacard.api.common.exceptions.ApiError;
+import org.irmacard.api.common.exceptions.ApiException;
+import org.irmacard.api.web.ApiConfiguration;
+import org.irmacard.api.web.Metrics;
+import org.irmacard.api.web.ServerBusyException;
+import org.irmacard.api.web.SessionConflictException;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Remembers the session request JWTs that were recently used to start a session, by their digest,
+ * so that a client that retries the same JWT can be given the session that it already started
+ * (or can be refused) without verifying the JWT again. Entries are kept as long as the JWT itself
+ * is acceptable (i.e., max_jwt_age), since after that the JWT is rejected anyway. Only signed JWTs
+ * are remembered: anyone can create a new unsigned JWT, so there is nothing to gain for those.
+ *
+ * Entries are also queued in the order in which they were added. Since they all live equally long,
+ * the head of that queue expires first, so expired entries are evicted from there without scanning.
+ * At most jwt_replay_cache_size JWTs are remembered. When that many unexpired JWTs are remembered,
+ * new JWTs are refused in REJECT mode, since they could otherwise be replayed; in IDEMPOTENT mode
+ * they are just not remembered, so a retry starts a new session.
+ */
+public class JwtReplayCache {
+	public enum Mode {
+		/** Handle each JWT as a new session request, even if it was seen before */
+		ALLOW,
+		/** Return the session that was started earlier with the same JWT, if it still exists */
+		IDEMPOTENT,
+		/** Refuse JWTs that were seen before */
+		REJECT
+	}
+
+	private static class Entry {
+		final String key;
+		final ClientQr qr;
+		final String sessionToken;
+		final long expiresAt;
+
+		Entry(String key, ClientQr qr, String sessionToken, long expiresAt) {
+			this.key = key;
+			this.qr = qr;
+			this.sessionToken = sessionToken;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private static final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+	private static final ConcurrentLinkedQueue<Entry> order = new ConcurrentLinkedQueue<>();
+
+	private JwtReplayCache() {}
+
+	/**
+	 * @return The key under which the specified JWT is remembered, or null if it is not signed
+	 */
+	public static String key(String action, String jwt) {
+		if (jwt == null || jwt.endsWith("."))
+			return null; // Unsigned JWTs have an empty signature part
+		return action + ":" + DigestUtils.sha256Hex(jwt);
+	}
+
+	/**
+	 * Check whether the JWT with the specified key was used before within the window.
+	 * @return In IDEMPOTENT mode, the QR of the session that the JWT started earlier if that session
+	 * still exists; otherwise null, meaning that a new session should be started
+	 * @throws ApiException In REJECT mode, if the JWT was used before
+	 * @throws SessionConflictException In IDEMPOTENT mode, if the token already joined that session
+	 */
+	public static ClientQr check(String key, Mode mode) throws ApiException {
+		Entry entry = get(key);
+		if (entry == null)
+			return null;
+
+		Metrics.increment("jwt.replay.hit");
+		if (mode == Mode.REJECT)
+			throw new ApiException(ApiError.JWT_INVALID, "JWT was already used");
+		return reusableQr(entry);
+	}
+
+	/**
+	 * @return The QR of the session of the entry, or null if that session no longer exists
+	 * @throws SessionConflictException If the session is no longer waiting for a token
+	 */
+	private static ClientQr reusableQr(Entry entry) {
+		IrmaSession session = Sessions.findAnySession(entry.sessionToken);
+		if (session == null)
+			return null;
+		if (session.getStatus() != IrmaSession.Status.INITIALIZED) {
+			Metrics.increment("jwt.replay.conflict");
+			throw new SessionConflictException("The session started with this JWT is already " + session.getStatus());
+		}
+		return entry.qr;
+	}
+
+	private static Entry get(String key) {
+		Entry entry = entries.get(key);
+		if (entry == null)
+			return null;
+		if (entry.expiresAt <= System.currentTimeMillis()) {
+			entries.remove(key, entry);
+			return null;
+		}
+		return entry;
+	}
+
+	/**
+	 * Remember that the JWT with the specified key started the specified session.
+	 * @param windowMillis How long to remember it
+	 * @return In IDEMPOTENT mode, the QR of another live session that was started with the same JWT
+	 * (e.g. concurrently), if any
+	 * @throws ApiException In REJECT mode, if the same JWT was remembered concurrently
+	 * @throws SessionConflictException In IDEMPOTENT mode, if that other session is no longer waiting for a token
+	 * @throws ServerBusyException In REJECT mode, if the cache is full
+	 */
+	public static ClientQr put(String key, ClientQr qr, String sessionToken, long windowMillis, Mode mode) {
+		long now = System.currentTimeMillis();
+		evictExpired(now);
+		if (entries.size() >= ApiConfiguration.getInstance().getJwtReplayCacheSize()) {
+			// All entries are still valid, so remembering this one would push out one that is needed
+			Metrics.increment("jwt.replay.cache_full");
+			if (mode == Mode.REJECT)
+				throw new ServerBusyException(); // We could not recognize a replay of this JWT
+			return null;
+		}
+
+		Entry entry = new Entry(key, qr, sessionToken, now + windowMillis);
+		while (true) {
+			Entry existing = entries.putIfAbsent(key, entry);
+			if (existing == null)
+				break;
+			// Keep the existing entry if it is still in use, otherwise replace it
+			if (existing.expiresAt > now) {
+				if (mode == Mode.REJECT) {
+					Metrics.increment("jwt.replay.hit");
+					throw new ApiException(ApiError.JWT_INVALID, "JWT was already used");
+				}
+				ClientQr existingQr = reusableQr(existing);
+				if (existingQr != null)
+					return existingQr;
+			}
+			if (entries.replace(key, existing, entry))
+				break;
+		}
+		order.add(entry);
+		return null;
+	}
+
+	/**
+	 * Evict entries from the head of the queue as long as they are expired. If the window was
+	 * changed by a configuration reload the queue is not exactly in order of expiry for a while;
+	 * entries behind one that is not yet expired are then evicted a bit later.
+	 */
+	private static void evictExpired(long now) {
+		Entry head;
+		while ((head = order.peek()) != null && head.expiresAt <= now) {
+			if (order.remove(head))
+				entries.remove(head.key, head);
+		}
+	}
+}
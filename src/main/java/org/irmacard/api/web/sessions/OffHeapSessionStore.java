@@ -0,0 +1,287 @@
+package org.irmacard.api.web.sessions;
+
+import org.irmacard.api.web.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps idle sessions (i.e., sessions in which nothing has happened yet and that nobody listens to)
+ * serialized in direct memory outside of the Java heap, so that pending sessions neither fill the heap
+ * nor slow down garbage collection. As soon as an idle session is requested it is deserialized and
+ * moved to the heap for the rest of its life, since from then on it is mutated and may get a status
+ * socket. Per idle session only its token, its address, when it was stored and its expiry timeout live
+ * on the heap. Sessions that are read back lose the lifetime that passed while they were off-heap.
+ * Status polls use {@link #peek(String)}, which reads a copy of the session and leaves it off-heap.
+ */
+public class OffHeapSessionStore<T extends IrmaSession> implements SessionStore<T> {
+	private static Logger logger = LoggerFactory.getLogger(OffHeapSessionStore.class);
+
+	private static final int LOCK_STRIPES = 64;
+
+	private final ConcurrentHashMap<String, T> active = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Idle> idle = new ConcurrentHashMap<>();
+	private final Slabs slabs = new Slabs();
+	private final Object[] locks = new Object[LOCK_STRIPES];
+
+	public OffHeapSessionStore() {
+		for (int i = 0; i < LOCK_STRIPES; i++)
+			locks[i] = new Object();
+	}
+
+	private Object lockFor(String token) {
+		return locks[(token.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+	}
+
+	/**
+	 * Where and when an idle session was stored, and the timeout that removes it from there.
+	 */
+	private static class Idle {
+		final long address;
+		final long storedAt = System.currentTimeMillis();
+		volatile SessionExpiry.Timeout expiry;
+
+		Idle(long address) {
+			this.address = address;
+		}
+
+		long elapsedMillis() {
+			return System.currentTimeMillis() - storedAt;
+		}
+
+		void cancelExpiry() {
+			SessionExpiry.Timeout timeout = expiry;
+			if (timeout != null)
+				timeout.cancel();
+		}
+	}
+
+	/**
+	 * Removes the session once its lifetime is over, if it is still off-heap by then.
+	 * If it was moved to the heap in the meantime, its own removal timer takes over.
+	 */
+	private class IdleExpiry implements Runnable {
+		private final String token;
+
+		private IdleExpiry(String token) {
+			this.token = token;
+		}
+
+		@Override
+		public void run() {
+			if (!idle.containsKey(token))
+				return;
+			// Move it to the heap with no lifetime left, so that it is closed as usual
+			T session = get(token);
+			if (session != null)
+				session.close();
+		}
+	}
+
+	@Override
+	public void put(T session) {
+		String token = session.getSessionToken();
+		if (session.isIdle()) {
+			try {
+				byte[] bytes = SessionCodec.encode(session);
+				long remaining = session.getRemainingMillis();
+				long address = slabs.allocate(bytes);
+				if (address >= 0) {
+					Idle entry = new Idle(address);
+					synchronized (lockFor(token)) {
+						idle.put(token, entry);
+					}
+					session.suspendRemoval();
+					// If the session was promoted meanwhile, this timeout finds nothing to do
+					entry.expiry = SessionExpiry.getInstance().schedule(new IdleExpiry(token), remaining);
+					Metrics.add("sessions.offheap.bytes_stored", bytes.length);
+					return;
+				}
+			} catch (IOException e) {
+				logger.warn("Failed to serialize session {}, keeping it on the heap", token, e);
+			}
+		}
+
+		active.put(token, session);
+	}
+
+	@Override
+	public T get(String token) {
+		T session = active.get(token);
+		if (session != null)
+			return session;
+		if (!idle.containsKey(token))
+			return active.get(token); // It may have been moved to the heap in the meantime
+
+		synchronized (lockFor(token)) {
+			session = active.get(token);
+			if (session != null)
+				return session;
+			Idle entry = idle.get(token);
+			if (entry == null)
+				return null;
+
+			try {
+				@SuppressWarnings("unchecked")
+				T decoded = (T) SessionCodec.decode(slabs.read(entry.address), entry.elapsedMillis());
+				session = decoded;
+			} catch (IOException e) {
+				logger.error("Failed to deserialize session {}, dropping it", token, e);
+			}
+
+			// Make it visible on the heap before it disappears from off-heap, see above
+			if (session != null)
+				active.put(token, session);
+			idle.remove(token);
+			slabs.free(entry.address);
+			entry.cancelExpiry(); // The session has its own removal timer now
+			Metrics.increment("sessions.offheap.promoted");
+			return session;
+		}
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public T peek(String token) {
+		T session = active.get(token);
+		if (session != null || !idle.containsKey(token))
+			return session;
+
+		synchronized (lockFor(token)) {
+			session = active.get(token);
+			if (session != null)
+				return session;
+			Idle entry = idle.get(token);
+			if (entry == null)
+				return null;
+
+			try {
+				session = (T) SessionCodec.decode(slabs.read(entry.address), entry.elapsedMillis());
+				session.suspendRemoval(); // It's a copy, the stored session expires by itself
+				Metrics.increment("sessions.offheap.peeked");
+				return session;
+			} catch (IOException e) {
+				logger.error("Failed to deserialize session {}", token, e);
+				return null;
+			}
+		}
+	}
+
+	@Override
+	public T remove(String token) {
+		synchronized (lockFor(token)) {
+			Idle entry = idle.remove(token);
+			if (entry != null) {
+				slabs.free(entry.address);
+				entry.cancelExpiry();
+			}
+			return active.remove(token);
+		}
+	}
+
+	@Override
+	public int size() {
+		return active.size() + idle.size();
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public Collection<T> values() {
+		ArrayList<T> values = new ArrayList<>(active.values());
+		for (String token : idle.keySet()) {
+			synchronized (lockFor(token)) {
+				Idle entry = idle.get(token);
+				if (entry == null)
+					continue;
+				try {
+					T session = (T) SessionCodec.decode(slabs.read(entry.address), entry.elapsedMillis());
+					session.suspendRemoval(); // It's a copy, the stored session expires by itself
+					values.add(session);
+				} catch (IOException e) {
+					logger.error("Failed to deserialize session {}", token, e);
+				}
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Bump allocator over large direct buffers. Entries are stored as a length followed by the data,
+	 * and addressed by their slab index and offset. Since all sessions live about equally long, slabs
+	 * tend to empty out in the order in which they were filled; a slab is reused once all of its entries
+	 * have been freed.
+	 */
+	private static class Slabs {
+		private static final int SLAB_SIZE = 16 << 20;
+
+		private final ArrayList<ByteBuffer> slabs = new ArrayList<>();
+		private final ArrayList<Integer> live = new ArrayList<>();
+		private final ArrayDeque<Integer> free = new ArrayDeque<>();
+		private int current = -1;
+
+		/**
+		 * @return The address of the stored data, or -1 if it did not fit
+		 */
+		synchronized long allocate(byte[] data) {
+			int size = data.length + 4;
+			if (size > SLAB_SIZE)
+				return -1;
+
+			if (current < 0 || slabs.get(current).remaining() < size) {
+				if (current >= 0 && live.get(current) == 0)
+					slabs.get(current).clear();
+				else if (!nextSlab())
+					return -1;
+			}
+
+			ByteBuffer slab = slabs.get(current);
+			int offset = slab.position();
+			slab.putInt(data.length);
+			slab.put(data);
+			live.set(current, live.get(current) + 1);
+			return ((long) current << 32) | offset;
+		}
+
+		private boolean nextSlab() {
+			Integer recycled = free.poll();
+			if (recycled != null) {
+				current = recycled;
+				slabs.get(current).clear();
+				return true;
+			}
+
+			try {
+				slabs.add(ByteBuffer.allocateDirect(SLAB_SIZE));
+			} catch (OutOfMemoryError e) {
+				logger.warn("Direct memory exhausted, keeping new sessions on the heap");
+				return false;
+			}
+			live.add(0);
+			current = slabs.size() - 1;
+			Metrics.add("sessions.offheap.slabs", 1);
+			return true;
+		}
+
+		synchronized byte[] read(long address) {
+			ByteBuffer slab = slabs.get((int) (address >>> 32)).duplicate();
+			slab.position((int) address);
+			byte[] data = new byte[slab.getInt()];
+			slab.get(data);
+			return data;
+		}
+
+		synchronized void free(long address) {
+			int index = (int) (address >>> 32);
+			int count = live.get(index) - 1;
+			live.set(index, count);
+			if (count == 0 && index != current)
+				free.add(index);
+		}
+	}
+}
@@ -0,0 +1,269 @@
+package org.irmacard.api.web.sessions;
+
+import org.irmacard.api.web.CallbackDispatcher;
+import org.irmacard.api.web.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps finished sessions and their pending callbacks in a {@link Journal} on disk until the service
+ * provider has fetched the result or received the callback, so that results survive a crash of the
+ * server. When the server starts, the sessions whose results were not yet fetched are put back in
+ * their stores and the callbacks that were not yet delivered are dispatched again. Sessions that
+ * are also in the session snapshot (see {@link SessionSnapshot}) are restored only once.
+ *
+ * Results are synced to disk before the token is told that its response was accepted; callbacks
+ * and the fact that results were fetched are synced along with the next result.
+ */
+public class ResultJournal {
+	private static Logger logger = LoggerFactory.getLogger(ResultJournal.class);
+
+	private static final byte RESULT = 1;
+	private static final byte CLOSED = 2;
+	private static final byte CALLBACK = 3;
+	private static final byte DELIVERED = 4;
+
+	private static volatile ResultJournal instance;
+
+	private final Journal journal;
+	/** Per session token, the segment containing its result or its callback */
+	private final ConcurrentHashMap<String, Long> results = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Long> callbacks = new ConcurrentHashMap<>();
+
+	private ResultJournal(Journal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * Open the journal in the specified directory, and restore the sessions and callbacks in it.
+	 */
+	public static synchronized void open(File directory, int segmentSize) throws IOException {
+		if (instance != null)
+			return;
+		ResultJournal journal = new ResultJournal(new Journal(directory, segmentSize));
+		journal.replay();
+		instance = journal;
+	}
+
+	public static synchronized void close() {
+		if (instance == null)
+			return;
+		try {
+			instance.journal.close();
+		} catch (IOException e) {
+			logger.error("Failed to close result journal", e);
+		}
+		instance = null;
+	}
+
+	/**
+	 * Write the specified finished session to the journal and wait until it is on disk.
+	 */
+	public static void recordResult(IrmaSession session) {
+		ResultJournal current = instance;
+		if (current == null)
+			return;
+
+		long start = System.nanoTime();
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+			DataOutputStream out = header(bytes, RESULT, session.getSessionToken());
+			SessionCodec.encode(session, out);
+			Journal.Position position = current.retain(current.results, session.getSessionToken(), bytes.toByteArray());
+			current.journal.sync(position.sequence);
+			if (session.isClosed()) // Closed while we were writing, so recordClosed() may have missed it
+				current.settle(current.results, CLOSED, session.getSessionToken());
+		} catch (IOException e) {
+			Metrics.increment("journal.errors");
+			logger.error("Failed to write result of session {} to journal", session.getSessionToken(), e);
+			return;
+		}
+		Metrics.record("journal.result_us", (System.nanoTime() - start) / 1000);
+	}
+
+	/**
+	 * Note that the session with the specified token is closed, so that its result is no longer needed.
+	 */
+	public static void recordClosed(String sessionToken) {
+		ResultJournal current = instance;
+		if (current != null)
+			current.settle(current.results, CLOSED, sessionToken);
+	}
+
+	/**
+	 * Write a callback that is about to be dispatched to the journal. When the dispatcher is done with
+	 * it, {@link #recordDelivered(String)} should be called.
+	 */
+	public static void recordCallback(String sessionToken, URL url, String jwt) {
+		ResultJournal current = instance;
+		if (current == null)
+			return;
+
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(jwt.length() + 256);
+			DataOutputStream out = header(bytes, CALLBACK, sessionToken);
+			out.writeUTF(url.toString());
+			byte[] jwtBytes = jwt.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(jwtBytes.length);
+			out.write(jwtBytes);
+			current.retain(current.callbacks, sessionToken, bytes.toByteArray());
+		} catch (IOException e) {
+			Metrics.increment("journal.errors");
+			logger.error("Failed to write callback of session {} to journal", sessionToken, e);
+		}
+	}
+
+	/**
+	 * Note that the callback of the session with the specified token was delivered, or given up on.
+	 */
+	public static void recordDelivered(String sessionToken) {
+		ResultJournal current = instance;
+		if (current != null)
+			current.settle(current.callbacks, DELIVERED, sessionToken);
+	}
+
+	/**
+	 * Dispatch the callback of the specified session, and remove it from the journal when the
+	 * dispatcher is done with it.
+	 */
+	public static void dispatchCallback(final String sessionToken, URL url, String jwt) {
+		recordCallback(sessionToken, url, jwt);
+		boolean accepted = CallbackDispatcher.getInstance().dispatch(url, jwt, new Runnable() {
+			@Override public void run() {
+				recordDelivered(sessionToken);
+			}
+		});
+		if (!accepted)
+			recordDelivered(sessionToken);
+	}
+
+	private static DataOutputStream header(ByteArrayOutputStream bytes, byte type, String sessionToken)
+			throws IOException {
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(type);
+		out.writeUTF(sessionToken);
+		out.writeLong(System.currentTimeMillis());
+		return out;
+	}
+
+	private Journal.Position retain(ConcurrentHashMap<String, Long> entries, String sessionToken, byte[] record)
+			throws IOException {
+		Journal.Position position = journal.append(record, true);
+		Long previous = entries.put(sessionToken, position.segment);
+		if (previous != null)
+			journal.release(previous);
+		return position;
+	}
+
+	private void settle(ConcurrentHashMap<String, Long> entries, byte type, String sessionToken) {
+		Long segment = entries.remove(sessionToken);
+		if (segment == null)
+			return;
+
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+			header(bytes, type, sessionToken);
+			journal.append(bytes.toByteArray(), false);
+		} catch (IOException e) {
+			Metrics.increment("journal.errors");
+			logger.error("Failed to write to journal", e);
+		}
+		journal.release(segment);
+	}
+
+	private void replay() throws IOException {
+		long start = System.currentTimeMillis();
+		final LinkedHashMap<String, byte[]> pendingResults = new LinkedHashMap<>();
+		final LinkedHashMap<String, byte[]> pendingCallbacks = new LinkedHashMap<>();
+
+		journal.replay(new Journal.Visitor() {
+			@Override public void record(byte[] payload) throws IOException {
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+				byte type = in.readByte();
+				String sessionToken = in.readUTF();
+				switch (type) {
+					case RESULT: pendingResults.put(sessionToken, payload); break;
+					case CLOSED: pendingResults.remove(sessionToken); break;
+					case CALLBACK: pendingCallbacks.put(sessionToken, payload); break;
+					case DELIVERED: pendingCallbacks.remove(sessionToken); break;
+					default: throw new IOException("Unknown journal record type " + type);
+				}
+			}
+		});
+
+		int restored = 0;
+		long last = 0;
+		for (Map.Entry<String, byte[]> entry : pendingResults.entrySet()) {
+			if (restore(entry.getValue())) {
+				last = retain(results, entry.getKey(), entry.getValue()).sequence;
+				restored++;
+			}
+		}
+
+		Map<String, URL> urls = new LinkedHashMap<>();
+		Map<String, String> jwts = new LinkedHashMap<>();
+		for (Map.Entry<String, byte[]> entry : pendingCallbacks.entrySet()) {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(entry.getValue()));
+			in.readByte();
+			in.readUTF();
+			in.readLong();
+			urls.put(entry.getKey(), new URL(in.readUTF()));
+			byte[] jwt = new byte[in.readInt()];
+			in.readFully(jwt);
+			jwts.put(entry.getKey(), new String(jwt, StandardCharsets.UTF_8));
+			last = retain(callbacks, entry.getKey(), entry.getValue()).sequence;
+		}
+
+		journal.sync(last);
+		journal.finishReplay();
+
+		for (final String sessionToken : urls.keySet()) {
+			boolean accepted = CallbackDispatcher.getInstance().dispatch(urls.get(sessionToken), jwts.get(sessionToken),
+					new Runnable() {
+						@Override public void run() {
+							settle(callbacks, DELIVERED, sessionToken);
+						}
+					});
+			if (!accepted)
+				settle(callbacks, DELIVERED, sessionToken);
+		}
+
+		long duration = System.currentTimeMillis() - start;
+		Metrics.add("journal.restored.results", restored);
+		Metrics.add("journal.restored.callbacks", urls.size());
+		logger.info("Restored {} results and {} callbacks from journal in {} ms", restored, urls.size(), duration);
+	}
+
+	/**
+	 * Put the session from the specified result record back in its store, unless it expired or was
+	 * already restored from the session snapshot.
+	 * @return Whether the session is live
+	 */
+	@SuppressWarnings("unchecked")
+	private static boolean restore(byte[] record) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+		in.readByte();
+		String sessionToken = in.readUTF();
+		long elapsed = Math.max(System.currentTimeMillis() - in.readLong(), 0);
+
+		if (Sessions.findAnySession(sessionToken) != null)
+			return true;
+
+		IrmaSession session = SessionCodec.decode(in, elapsed);
+		if (session.getRemainingMillis() == 0) {
+			session.suspendRemoval();
+			return false;
+		}
+		if (session.getQuotaClient() != null)
+			SessionQuota.register(session.getQuotaClient());
+		((Sessions<IrmaSession>) Sessions.storeFor(session.getClass())).addSession(session);
+		return true;
+	}
+}
@@ -0,0 +1,79 @@
+package org.irmacard.api.web.sessions;
+
+import com.google.gson.Gson;
+import org.irmacard.api.common.util.GsonUtil;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Converts sessions to and from a compact binary representation, consisting of a small header
+ * (format version, session type, status and remaining lifetime) followed by the JSON
+ * serialization of the session. Transient state such as the status socket is not included.
+ */
+public class SessionCodec {
+	private static final byte FORMAT_VERSION = 1;
+
+	private SessionCodec() {}
+
+	private static Gson gson() {
+		return GsonUtil.getGson();
+	}
+
+	public static byte[] encode(IrmaSession session) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+		encode(session, new DataOutputStream(bytes));
+		return bytes.toByteArray();
+	}
+
+	public static void encode(IrmaSession session, DataOutput out) throws IOException {
+		byte[] json = gson().toJson(session).getBytes(StandardCharsets.UTF_8);
+
+		out.writeByte(FORMAT_VERSION);
+		out.writeChar(Sessions.tagFor(session.getClass()));
+		out.writeByte(session.getStatus().ordinal());
+		out.writeLong(session.getRemainingMillis());
+		out.writeInt(json.length);
+		out.write(json);
+	}
+
+	/**
+	 * Reconstruct a session, and schedule its removal after the lifetime it had left when it was
+	 * encoded. The session is not added to any store.
+	 */
+	public static IrmaSession decode(byte[] bytes) throws IOException {
+		return decode(new DataInputStream(new ByteArrayInputStream(bytes)));
+	}
+
+	/**
+	 * As {@link #decode(byte[])}, but subtracts the specified amount of time (e.g. the time the session
+	 * spent in storage) from the remaining lifetime of the session.
+	 */
+	public static IrmaSession decode(byte[] bytes, long elapsedMillis) throws IOException {
+		return decode(new DataInputStream(new ByteArrayInputStream(bytes)), elapsedMillis);
+	}
+
+	public static IrmaSession decode(DataInput in) throws IOException {
+		return decode(in, 0);
+	}
+
+	/**
+	 * As {@link #decode(DataInput)}, but subtracts the specified amount of time (e.g. the time the
+	 * server was down) from the remaining lifetime of the session.
+	 */
+	public static IrmaSession decode(DataInput in, long elapsedMillis) throws IOException {
+		byte version = in.readByte();
+		if (version != FORMAT_VERSION)
+			throw new IOException("Unsupported session format version " + version);
+
+		Class<? extends IrmaSession> type = Sessions.typeFor(in.readChar());
+		IrmaSession.Status status = IrmaSession.Status.values()[in.readByte()];
+		long remaining = in.readLong() - elapsedMillis;
+		byte[] json = new byte[in.readInt()];
+		in.readFully(json);
+
+		IrmaSession session = gson().fromJson(new String(json, StandardCharsets.UTF_8), type);
+		session.restore(status, remaining);
+		return session;
+	}
+}
@@ -0,0 +1,247 @@
+package org.irmacard.api.web.sessions;
+
+import org.irmacard.api.web.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A hashed timing wheel that expires all sessions from a single ticking thread, instead of one
+ * {@link java.util.Timer} thread per session. Scheduling and cancelling a timeout are O(1) and never
+ * block: new and cancelled timeouts are handed to the ticking thread through lock-free queues, and
+ * only that thread touches the wheel itself. Expired tasks are run on a separate thread, so that a
+ * slow task (e.g. one that writes to the {@link ResultJournal}) does not hold up the wheel.
+ */
+public class SessionExpiry {
+	private static Logger logger = LoggerFactory.getLogger(SessionExpiry.class);
+
+	private static final long TICK_MILLIS = 100;
+	private static final int WHEEL_SIZE = 1024; // Must be a power of two
+	private static final int MASK = WHEEL_SIZE - 1;
+
+	private static volatile SessionExpiry instance;
+
+	public static SessionExpiry getInstance() {
+		if (instance == null) {
+			synchronized (SessionExpiry.class) {
+				if (instance == null) {
+					instance = new SessionExpiry();
+				}
+			}
+		}
+		return instance;
+	}
+
+	public static synchronized void shutdown() {
+		if (instance != null) {
+			instance.ticker.shutdownNow();
+			instance.runner.shutdownNow();
+		}
+		instance = null;
+	}
+
+	private static ThreadFactory daemon(final String name) {
+		return new ThreadFactory() {
+			@Override public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(daemon("session-expiry"));
+	private final ExecutorService runner = Executors.newSingleThreadExecutor(daemon("session-removal"));
+
+	private final long start = System.nanoTime();
+	private final Bucket[] wheel = new Bucket[WHEEL_SIZE];
+	private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<>();
+	private final ConcurrentLinkedQueue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+	private final AtomicLong pending = new AtomicLong();
+	private long tick = 0; // Only accessed by the ticking job
+
+	private SessionExpiry() {
+		for (int i = 0; i < WHEEL_SIZE; i++)
+			wheel[i] = new Bucket();
+
+		Metrics.gauge("sessions.expiry.pending", new Metrics.Gauge() {
+			@Override public long get() {
+				return pending.get();
+			}
+		});
+
+		ticker.scheduleAtFixedRate(new Runnable() {
+			@Override public void run() {
+				try {
+					tick();
+				} catch (Throwable e) { // An exception would cancel all future ticks
+					logger.error("Session expiry tick failed", e);
+				}
+			}
+		}, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	private long elapsedMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+	}
+
+	/**
+	 * Run the specified task once the delay has passed, unless the returned timeout is cancelled first.
+	 * Tasks run one at a time on a single thread, so they should not take long.
+	 */
+	public Timeout schedule(Runnable task, long delayMillis) {
+		Timeout timeout = new Timeout(task, elapsedMillis() + Math.max(delayMillis, 0));
+		pending.incrementAndGet();
+		added.add(timeout);
+		return timeout;
+	}
+
+	private void tick() {
+		long now = elapsedMillis();
+
+		// We only expire a bucket once all of its deadlines have passed
+		while ((tick + 1) * TICK_MILLIS <= now) {
+			transferAdded();
+			removeCancelled();
+
+			Bucket bucket = wheel[(int) (tick & MASK)];
+			Timeout timeout = bucket.head;
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.remainingRounds > 0) {
+					timeout.remainingRounds--;
+				} else {
+					bucket.remove(timeout);
+					timeout.expire(now);
+				}
+				timeout = next;
+			}
+
+			tick++;
+		}
+	}
+
+	private void transferAdded() {
+		Timeout timeout;
+		while ((timeout = added.poll()) != null) {
+			if (timeout.state.get() != Timeout.ST_INIT)
+				continue; // Cancelled before it even made it into the wheel
+
+			long calculated = timeout.deadline / TICK_MILLIS;
+			timeout.remainingRounds = (calculated - tick) / WHEEL_SIZE;
+			// Deadlines that already passed go into the bucket that is about to be expired
+			wheel[(int) (Math.max(calculated, tick) & MASK)].add(timeout);
+		}
+	}
+
+	private void removeCancelled() {
+		Timeout timeout;
+		while ((timeout = cancelled.poll()) != null)
+			if (timeout.bucket != null)
+				timeout.bucket.remove(timeout);
+	}
+
+	/**
+	 * A scheduled task in the wheel, which can be cancelled from any thread.
+	 */
+	public class Timeout {
+		private static final int ST_INIT = 0;
+		private static final int ST_CANCELLED = 1;
+		private static final int ST_EXPIRED = 2;
+
+		private final Runnable task;
+		private final long deadline;
+		private final AtomicInteger state = new AtomicInteger(ST_INIT);
+
+		// The following are only accessed by the ticking job
+		private long remainingRounds;
+		private Bucket bucket;
+		private Timeout next;
+		private Timeout prev;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Prevent the task from running, if it did not already run.
+		 * @return true if the task was cancelled by this call
+		 */
+		public boolean cancel() {
+			if (!state.compareAndSet(ST_INIT, ST_CANCELLED))
+				return false;
+			pending.decrementAndGet();
+			cancelled.add(this);
+			return true;
+		}
+
+		private void expire(long now) {
+			if (!state.compareAndSet(ST_INIT, ST_EXPIRED))
+				return;
+			pending.decrementAndGet();
+
+			long lag = now - deadline;
+			Metrics.increment("sessions.expiry.expired");
+			Metrics.add("sessions.expiry.lag_ms_total", lag);
+			Metrics.max("sessions.expiry.lag_ms_max", lag);
+
+			try {
+				runner.execute(new Runnable() {
+					@Override public void run() {
+						try {
+							task.run();
+						} catch (Throwable e) {
+							logger.error("Session expiry task failed", e);
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) { // Shutting down
+				logger.debug("Dropping session expiry task during shutdown");
+			}
+		}
+	}
+
+	/**
+	 * A doubly linked list of timeouts, so that cancelled timeouts can be unlinked in O(1).
+	 */
+	private static class Bucket {
+		private Timeout head;
+		private Timeout tail;
+
+		private void add(Timeout timeout) {
+			timeout.bucket = this;
+			if (head == null) {
+				head = tail = timeout;
+			} else {
+				tail.next = timeout;
+				timeout.prev = tail;
+				tail = timeout;
+			}
+		}
+
+		private void remove(Timeout timeout) {
+			if (timeout.prev != null)
+				timeout.prev.next = timeout.next;
+			else
+				head = timeout.next;
+			if (timeout.next != null)
+				timeout.next.prev = timeout.prev;
+			else
+				tail = timeout.prev;
+
+			timeout.prev = null;
+			timeout.next = null;
+			timeout.bucket = null;
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package org.irmacard.api.web.sessions;
+
+import org.irmacard.api.web.ApiConfiguration;
+import org.irmacard.api.web.Metrics;
+import org.irmacard.api.web.SessionLimitException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts the concurrent sessions in total and per client, and rejects new sessions that would exceed
+ * the limits from the configuration. The counters are updated without locking: a slot is taken
+ * optimistically and given back if it turns out to exceed the limit.
+ */
+public class SessionQuota {
+	private static Logger logger = LoggerFactory.getLogger(SessionQuota.class);
+
+	/** Client under which unsigned requests are counted */
+	public static final String ANONYMOUS = "*";
+
+	private static final AtomicInteger total = new AtomicInteger();
+	private static final ConcurrentHashMap<String, AtomicInteger> clients = new ConcurrentHashMap<>();
+
+	static {
+		Metrics.gauge("sessions.admission.active", new Metrics.Gauge() {
+			@Override public long get() {
+				return total.get();
+			}
+		});
+	}
+
+	private SessionQuota() {}
+
+	private static AtomicInteger counterFor(final String client) {
+		AtomicInteger counter = clients.get(client);
+		if (counter == null) {
+			AtomicInteger existing = clients.putIfAbsent(client, counter = new AtomicInteger());
+			if (existing != null)
+				return existing;
+
+			final AtomicInteger registered = counter;
+			Metrics.gauge("sessions.admission.active." + client, new Metrics.Gauge() {
+				@Override public long get() {
+					return registered.get();
+				}
+			});
+		}
+		return counter;
+	}
+
+	private static boolean tryAcquire(AtomicInteger counter, int limit) {
+		if (counter.incrementAndGet() <= limit || limit <= 0)
+			return true;
+		counter.decrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Cheaply check whether the global limit has been reached, so that requests can be rejected
+	 * before their JWT is verified.
+	 * @throws SessionLimitException If no new sessions can currently be accepted
+	 */
+	public static void check() throws SessionLimitException {
+		int limit = ApiConfiguration.getInstance().getMaxSessions();
+		if (limit > 0 && total.get() >= limit)
+			reject("Maximum number of sessions reached", "sessions.admission.rejected.global");
+	}
+
+	/**
+	 * Take a slot for a new session of the specified client.
+	 * @param client The JWT key identifier of the client, or null for unsigned requests
+	 * @return The name under which the session was counted, to be passed to {@link #release(String)}
+	 * @throws SessionLimitException If this would exceed the global or the client's limit
+	 */
+	public static String acquire(String client) throws SessionLimitException {
+		if (client == null || client.length() == 0)
+			client = ANONYMOUS;
+
+		ApiConfiguration conf = ApiConfiguration.getInstance();
+		if (!tryAcquire(total, conf.getMaxSessions()))
+			reject("Maximum number of sessions reached", "sessions.admission.rejected.global");
+
+		if (!tryAcquire(counterFor(client), conf.getMaxSessions(client))) {
+			total.decrementAndGet();
+			logger.warn("Client {} reached its maximum number of sessions", client);
+			reject("Maximum number of sessions reached for " + client, "sessions.admission.rejected.client");
+		}
+
+		Metrics.increment("sessions.admission.accepted");
+		return client;
+	}
+
+	/**
+	 * Count a session regardless of the limits, e.g. when it is restored after a restart.
+	 */
+	static void register(String client) {
+		total.incrementAndGet();
+		counterFor(client).incrementAndGet();
+	}
+
+	/**
+	 * Give back the slot of a session that has ended.
+	 */
+	static void release(String client) {
+		total.decrementAndGet();
+		counterFor(client).decrementAndGet();
+	}
+
+	private static void reject(String description, String metric) throws SessionLimitException {
+		Metrics.increment("sessions.admission.rejected");
+		Metrics.increment(metric);
+		throw new SessionLimitException(description);
+	}
+}
@@ -0,0 +1,127 @@
+package org.irmacard.api.web.sessions;
+
+import org.irmacard.api.web.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes all live sessions to a file when the server shuts down, and restores them when it starts,
+ * so that redeploying the server does not break sessions that are in progress. The file is a gzipped
+ * stream of {@link SessionCodec} records, preceded by the time at which it was written so that the
+ * downtime can be subtracted from the remaining lifetime of the sessions. Since it contains finished
+ * sessions with their disclosed attributes, it is readable by its owner only.
+ */
+public class SessionSnapshot {
+	private static Logger logger = LoggerFactory.getLogger(SessionSnapshot.class);
+
+	private static final int MAGIC = 0x49524d41; // "IRMA"
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private SessionSnapshot() {}
+
+	/**
+	 * Write all sessions to the specified file, replacing it atomically.
+	 * @return The number of sessions written
+	 */
+	public static int write(File file) throws IOException {
+		long start = System.currentTimeMillis();
+		File temp = new File(file.getPath() + ".tmp");
+		createOwnerOnly(temp);
+		int count = 0;
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new GZIPOutputStream(new FileOutputStream(temp), BUFFER_SIZE), BUFFER_SIZE))) {
+			out.writeInt(MAGIC);
+			out.writeLong(System.currentTimeMillis());
+			count += write(out, Sessions.getVerificationSessions());
+			count += write(out, Sessions.getIssuingSessions());
+			count += write(out, Sessions.getSignatureSessions());
+			out.writeBoolean(false); // End of stream marker
+		}
+
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		logger.info("Wrote {} sessions to {} in {} ms", count, file, System.currentTimeMillis() - start);
+		return count;
+	}
+
+	/**
+	 * Create the specified file (again) so that only its owner can read and write it.
+	 */
+	private static void createOwnerOnly(File file) throws IOException {
+		Path path = file.toPath();
+		Files.deleteIfExists(path);
+		if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+			Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		} else {
+			Files.createFile(path);
+			file.setReadable(false, false);
+			file.setWritable(false, false);
+			file.setReadable(true, true);
+			file.setWritable(true, true);
+		}
+	}
+
+	private static int write(DataOutputStream out, Sessions<?> sessions) throws IOException {
+		int count = 0;
+		for (IrmaSession session : sessions.getStore().values()) {
+			out.writeBoolean(true);
+			SessionCodec.encode(session, out);
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Restore the sessions from the specified file, if it exists, and re-arm their removal timers.
+	 * Sessions that expired while the server was down are skipped. The file is deleted afterwards,
+	 * so that it is not restored a second time after a crash.
+	 * @return The number of sessions restored
+	 */
+	@SuppressWarnings("unchecked")
+	public static int restore(File file) throws IOException {
+		if (!file.exists())
+			return 0;
+
+		long start = System.currentTimeMillis();
+		int count = 0;
+		int expired = 0;
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new GZIPInputStream(new FileInputStream(file), BUFFER_SIZE), BUFFER_SIZE))) {
+			if (in.readInt() != MAGIC)
+				throw new IOException("Not a session snapshot: " + file);
+			long downtime = Math.max(System.currentTimeMillis() - in.readLong(), 0);
+
+			while (in.readBoolean()) {
+				IrmaSession session = SessionCodec.decode(in, downtime);
+				if (session.getRemainingMillis() == 0) {
+					session.suspendRemoval();
+					expired++;
+					continue;
+				}
+				if (session.getQuotaClient() != null)
+					SessionQuota.register(session.getQuotaClient());
+				((Sessions<IrmaSession>) Sessions.storeFor(session.getClass())).addSession(session);
+				count++;
+			}
+		} finally {
+			if (!file.delete())
+				logger.warn("Could not delete session snapshot {}", file);
+		}
+
+		long duration = System.currentTimeMillis() - start;
+		Metrics.add("sessions.snapshot.restored", count);
+		Metrics.add("sessions.snapshot.restore_ms", duration);
+		logger.info("Restored {} sessions ({} expired) from {} in {} ms", count, expired, file, duration);
+		return count;
+	}
+}
@@ -0,0 +1,37 @@
+package org.irmacard.api.web.sessions;
+
+import java.util.Collection;
+
+/**
+ * Storage backend of a {@link Sessions} instance, keyed by session token. Implementations must be
+ * safe for concurrent use.
+ */
+public interface SessionStore<T extends IrmaSession> {
+	void put(T session);
+
+	/**
+	 * @return The session with the specified token, or null if there is none. Changes made to the
+	 * returned session must be visible to later callers of this method.
+	 */
+	T get(String token);
+
+	/**
+	 * Like {@link #get(String)}, but for callers that only read the session (e.g. status polls), so
+	 * that the store need not prepare it for changes. Changes made to the returned session are not
+	 * guaranteed to end up in the store.
+	 */
+	T peek(String token);
+
+	/**
+	 * @return The removed session, or null if there was none
+	 */
+	T remove(String token);
+
+	int size();
+
+	/**
+	 * A read-only copy of all sessions in the store, e.g. for logging or snapshotting. Changes made
+	 * to these sessions are not guaranteed to end up in the store.
+	 */
+	Collection<T> values();
+}
@@ -0,0 +1,74 @@
+package org.irmacard.api.web.sessions;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Generates session tokens. Each thread has its own random generator and buffers, so that threads
+ * creating sessions concurrently do not contend on a single {@link SecureRandom}. Random bytes are
+ * fetched in batches and mapped directly to the URL-safe characters [A-Za-z0-9] by rejection
+ * sampling, which keeps the tokens unbiased.
+ */
+class SessionTokens {
+	private static Logger logger = LoggerFactory.getLogger(SessionTokens.class);
+
+	/** Number of random characters per token; 43 base62 characters carry 256 bits */
+	static final int RANDOM_LENGTH = 43;
+
+	private static final char[] ALPHABET =
+			"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789".toCharArray();
+	private static final int BATCH_SIZE = 256;
+
+	private static final ThreadLocal<SessionTokens> generators = new ThreadLocal<SessionTokens>() {
+		@Override protected SessionTokens initialValue() {
+			return new SessionTokens();
+		}
+	};
+
+	private final SecureRandom random = newSecureRandom();
+	private final byte[] batch = new byte[BATCH_SIZE];
+	private int position = BATCH_SIZE;
+	private final char[] token = new char[RANDOM_LENGTH + 2];
+
+	private SessionTokens() {}
+
+	/**
+	 * Prefer DRBG (Java 9+); otherwise SHA1PRNG, which unlike NativePRNG does not funnel all
+	 * instances through a single lock on /dev/urandom. Both seed themselves from the OS.
+	 */
+	private static SecureRandom newSecureRandom() {
+		for (String algorithm : new String[] {"DRBG", "SHA1PRNG"}) {
+			try {
+				return SecureRandom.getInstance(algorithm);
+			} catch (NoSuchAlgorithmException e) {
+				logger.debug("SecureRandom algorithm {} not available", algorithm);
+			}
+		}
+		return new SecureRandom();
+	}
+
+	/**
+	 * @return A new token consisting of the specified tag, the separator, and the random part
+	 */
+	static String generate(char tag, char separator) {
+		return generators.get().next(tag, separator);
+	}
+
+	private String next(char tag, char separator) {
+		token[0] = tag;
+		token[1] = separator;
+		for (int i = 2; i < token.length; ) {
+			if (position == BATCH_SIZE) {
+				random.nextBytes(batch);
+				position = 0;
+			}
+			int value = batch[position++] & 0x3f;
+			if (value < ALPHABET.length)
+				token[i++] = ALPHABET[value];
+		}
+		return new String(token);
+	}
+}
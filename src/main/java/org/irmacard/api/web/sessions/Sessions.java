@@ -33,55 +33,81 @@
 
 package org.irmacard.api.web.sessions;
 
-import org.bouncycastle.util.encoders.Base64;
 import org.irmacard.api.common.exceptions.ApiError;
 import org.irmacard.api.common.exceptions.ApiException;
 import org.irmacard.api.web.resources.SignatureResource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.security.SecureRandom;
-import java.util.HashMap;
-import java.util.Map.Entry;
 
 public class Sessions<T extends IrmaSession> {
     private static Logger logger = LoggerFactory.getLogger(Sessions.class);
 
-    private static Sessions<VerificationSession> vs = null;
-    private static Sessions<IssueSession> is = null;
-    private static Sessions<SignatureSession> ss = null;
-    private static final int SESSION_TOKEN_LENGTH = 33;
-    private static SecureRandom rnd = new SecureRandom();
+    // Created eagerly, so that the getters below need no synchronization
+    private static final Sessions<VerificationSession> vs = new Sessions<>();
+    private static final Sessions<IssueSession> is = new Sessions<>();
+    private static final Sessions<SignatureSession> ss = new Sessions<>();
+    private static final char TAG_SEPARATOR = '_';
+    private static final char VERIFICATION_TAG = 'v';
+    private static final char ISSUING_TAG = 'i';
+    private static final char SIGNATURE_TAG = 's';
 
     public static Sessions<VerificationSession> getVerificationSessions() {
-        if (vs == null) {
-            vs = new Sessions<>();
-        }
         return vs;
     }
 
     public static Sessions<IssueSession> getIssuingSessions() {
-        if (is == null) {
-            is = new Sessions<>();
-        }
         return is;
     }
 
     public static Sessions<SignatureSession> getSignatureSessions() {
-        if (ss == null) {
-            ss = new Sessions<>();
-        }
         return ss;
     }
 
 
-    private HashMap<String, T> sessions;
+    /**
+     * Switch all three session stores to {@link OffHeapSessionStore}s, moving any sessions
+     * they already contain.
+     */
+    public static void useOffHeapStores() {
+        vs.setStore(new OffHeapSessionStore<VerificationSession>());
+        is.setStore(new OffHeapSessionStore<IssueSession>());
+        ss.setStore(new OffHeapSessionStore<SignatureSession>());
+    }
+
+
+    private volatile SessionStore<T> sessions;
 
     public Sessions() {
-        sessions = new HashMap<>();
+        sessions = new HeapSessionStore<>();
+    }
+
+    public Sessions(SessionStore<T> store) {
+        sessions = store;
     }
 
+    SessionStore<T> getStore() {
+        return sessions;
+    }
+
+    public synchronized void setStore(SessionStore<T> store) {
+        SessionStore<T> previous = sessions;
+        sessions = store;
+        for (T session : previous.values()) {
+            previous.remove(session.getSessionToken());
+            store.put(session);
+        }
+    }
+
+    /**
+     * Look up a session of any type. Tagged tokens are routed directly to the right store; for
+     * legacy untagged tokens we have to try all three.
+     */
     public static IrmaSession findAnySession(String sessiontoken) {
+        Sessions<?> store = forToken(sessiontoken);
+        if (store != null)
+            return store.getSession(sessiontoken);
+
         IrmaSession session = getVerificationSessions().getSession(sessiontoken);
         if (session != null)
             return session;
@@ -94,7 +120,7 @@ public class Sessions<T extends IrmaSession> {
     }
 
     public void addSession(T session) {
-        sessions.put(session.getSessionToken(), session);
+        sessions.put(session);
     }
 
     public T getSession(String sessionToken) {
@@ -105,13 +131,14 @@ public class Sessions<T extends IrmaSession> {
         sessions.remove(session.getSessionToken());
     }
 
+    public int size() {
+        return sessions.size();
+    }
+
     public void print() {
         logger.info("Active sessions:");
-        for (Entry<String, T> pairs : sessions.entrySet()) {
-            String key = pairs.getKey();
-            IrmaSession session = pairs.getValue();
-
-            logger.info(key + ": " + session);
+        for (T session : sessions.values()) {
+            logger.info(session.getSessionToken() + ": " + session);
         }
     }
 
@@ -131,20 +158,82 @@ public class Sessions<T extends IrmaSession> {
     }
 
     /**
-     * A random session token. Returns a base64 encoded string representing the
-     * session token. The characters '+' and '/' are removed from this
-     * representation.
+     * Like {@link #getNonNullSession(String)}, but for requests that only read the session, such as
+     * status polls. Changes made to the returned session may be lost; see {@link SessionStore#peek(String)}.
+     * @throws ApiException if the token is null or "", or not found
+     */
+    public T peekNonNullSession(String token) throws ApiException {
+        if (token == null || token.equals(""))
+            throw new ApiException(ApiError.SESSION_TOKEN_MALFORMED);
+
+        T session = sessions.peek(token);
+        if (session == null)
+            throw new ApiException(ApiError.SESSION_UNKNOWN, token);
+
+        return session;
+    }
+
+    /**
+     * A random session token for a session of the specified type, consisting of a tag for the
+     * session type followed by '_' and 256 random bits in [A-Za-z0-9] (see {@link SessionTokens}).
+     * Legacy untagged tokens (base64 without '+' and '/') never contain '_'.
      *
      * @return the random session token
      */
-    public static String generateSessionToken() {
-        byte[] token = new byte[SESSION_TOKEN_LENGTH];
-        rnd.nextBytes(token);
-        String strtoken = new String(Base64.encode(token));
-        return strtoken.replace("+", "").replace("/", "");
+    public static String generateSessionToken(Class<? extends IrmaSession> type) {
+        return SessionTokens.generate(tagFor(type), TAG_SEPARATOR);
+    }
+
+    static char tagFor(Class<? extends IrmaSession> type) {
+        if (VerificationSession.class.isAssignableFrom(type))
+            return VERIFICATION_TAG;
+        if (IssueSession.class.isAssignableFrom(type))
+            return ISSUING_TAG;
+        if (SignatureSession.class.isAssignableFrom(type))
+            return SIGNATURE_TAG;
+
+        throw new IllegalArgumentException("Unknown session type " + type.getName());
+    }
+
+    static Class<? extends IrmaSession> typeFor(char tag) {
+        switch (tag) {
+            case VERIFICATION_TAG: return VerificationSession.class;
+            case ISSUING_TAG: return IssueSession.class;
+            case SIGNATURE_TAG: return SignatureSession.class;
+            default: throw new IllegalArgumentException("Unknown session type tag " + tag);
+        }
+    }
+
+    static Sessions<?> storeFor(Class<? extends IrmaSession> type) {
+        return forTag(tagFor(type));
+    }
+
+    /**
+     * Decodes the session type tag of the token.
+     * @return the store for this type of session, or null if the token is not tagged
+     */
+    private static Sessions<?> forToken(String token) {
+        if (token == null || token.length() < 2 || token.charAt(1) != TAG_SEPARATOR)
+            return null;
+        return forTag(token.charAt(0));
+    }
+
+    private static Sessions<?> forTag(char tag) {
+        switch (tag) {
+            case VERIFICATION_TAG: return getVerificationSessions();
+            case ISSUING_TAG: return getIssuingSessions();
+            case SIGNATURE_TAG: return getSignatureSessions();
+            default: return null;
+        }
     }
 
     public static void removeSession(String session) {
+        Sessions<?> store = forToken(session);
+        if (store != null) {
+            store.sessions.remove(session);
+            return;
+        }
+
         getVerificationSessions().sessions.remove(session);
         getIssuingSessions().sessions.remove(session);
         getSignatureSessions().sessions.remove(session);
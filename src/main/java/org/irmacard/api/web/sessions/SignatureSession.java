@@ -40,6 +40,8 @@ import org.irmacard.api.common.signatures.SignatureProofResult;
 
 public class SignatureSession extends IrmaSession<SignatureClientRequest, SignatureProofRequest> {
 	private SignatureProofResult result;
+	private int validity; // Set when the session is compacted
+
 	/**
 	 * Construct a new session for the specified client (IdP or SP) request.
 	 *
@@ -53,12 +55,35 @@ public class SignatureSession extends IrmaSession<SignatureClientRequest, Signat
 		super();
 	}
 
+	/**
+	 * @return The validity of the result JWT, which survives {@link #compact()}
+	 */
+	public int getValidity() {
+		SignatureClientRequest request = getClientRequest();
+		return request != null ? request.getValidity() : validity;
+	}
+
+	@Override
+	protected void compact() {
+		SignatureClientRequest request = getClientRequest();
+		if (request != null)
+			validity = request.getValidity();
+		super.compact();
+	}
+
 	public SignatureProofResult getResult() {
 		return result;
 	}
 
-	public void setResult(SignatureProofResult result) {
+	/**
+	 * Store the result and move the session to DONE.
+	 * @return false if the session was not CONNECTED, in which case the result is discarded
+	 */
+	public boolean setResult(SignatureProofResult result) {
 		this.result = result;
-		setStatusDone();
+		if (setStatusDone())
+			return true;
+		this.result = null;
+		return false;
 	}
 }
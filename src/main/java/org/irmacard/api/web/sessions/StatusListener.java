@@ -0,0 +1,48 @@
+package org.irmacard.api.web.sessions;
+
+/**
+ * Receives the status updates of a session, e.g. to pass them on to a website (see
+ * {@link org.irmacard.api.web.StatusSocket}). Any number of listeners can be added to a session with
+ * {@link IrmaSession#addStatusListener(StatusListener)}.
+ *
+ * Updates are delivered by a shared pool of threads, never by the thread that changed the status,
+ * one at a time and in order per listener. A listener that is added is first told the current
+ * status, if the token has connected already. Updates that would not tell a listener anything new
+ * (e.g. CONNECTED after DONE) are skipped, so each listener sees each update at most once. After
+ * CLOSED, nothing is delivered anymore.
+ */
+public interface StatusListener {
+	enum Event {
+		CONNECTED, DONE, CANCELLED, TIMEOUT, CLOSED;
+
+		/**
+		 * @return The event that announces the specified status, or null for INITIALIZED
+		 */
+		public static Event of(IrmaSession.Status status) {
+			switch (status) {
+				case CONNECTED: return CONNECTED;
+				case DONE: return DONE;
+				case CANCELLED: return CANCELLED;
+				default: return null;
+			}
+		}
+
+		/**
+		 * Events are delivered only in increasing order of this rank.
+		 */
+		int rank() {
+			switch (this) {
+				case CONNECTED: return 1;
+				case DONE: case CANCELLED: return 2;
+				case TIMEOUT: return 3;
+				default: return 4;
+			}
+		}
+	}
+
+	/**
+	 * Must not block, since it holds up the delivery of updates to other listeners. Sends to the
+	 * client that may block should be passed to a {@link StatusSender}.
+	 */
+	void onStatus(IrmaSession session, Event event);
+}
@@ -0,0 +1,112 @@
+package org.irmacard.api.web.sessions;
+
+import org.irmacard.api.web.ApiConfiguration;
+import org.irmacard.api.web.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The pending status updates of a single {@link StatusListener}. Posting an update only marks it as
+ * pending and, if the mailbox is not being drained already, schedules it to be drained on a shared
+ * pool of status_threads threads, so that the thread that changes the status of a session never waits
+ * for its listeners. Listeners must not block that pool; they send to their clients through a
+ * {@link StatusSender}. Each kind of update is pending at most once and updates are delivered in
+ * order of their rank, so the mailbox never holds more than one of each and none has to be dropped:
+ * a listener that falls behind skips straight to the latest status, but still gets DONE or CANCELLED
+ * before CLOSED.
+ */
+public class StatusMailbox implements Runnable {
+	private static Logger logger = LoggerFactory.getLogger(StatusMailbox.class);
+
+	private static final StatusListener.Event[] EVENTS = StatusListener.Event.values();
+	private static volatile ExecutorService executor;
+
+	final StatusListener listener;
+	private final IrmaSession session;
+	/** The pending events, as a bit per event ordinal */
+	private final AtomicInteger pending = new AtomicInteger();
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private int delivered = 0; // Rank of the last delivered event; only accessed while draining
+
+	StatusMailbox(IrmaSession session, StatusListener listener) {
+		this.session = session;
+		this.listener = listener;
+	}
+
+	private static ExecutorService getExecutor() {
+		if (executor == null) {
+			synchronized (StatusMailbox.class) {
+				if (executor == null) {
+					int threads = ApiConfiguration.getInstance().getStatusThreads();
+					executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+						private final AtomicInteger count = new AtomicInteger();
+						@Override public Thread newThread(Runnable runnable) {
+							Thread thread = new Thread(runnable, "status-" + count.incrementAndGet());
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+				}
+			}
+		}
+		return executor;
+	}
+
+	public static synchronized void shutdown() {
+		if (executor != null)
+			executor.shutdownNow();
+		executor = null;
+	}
+
+	void post(StatusListener.Event event) {
+		int bit = 1 << event.ordinal();
+		int current;
+		do {
+			current = pending.get();
+		} while (!pending.compareAndSet(current, current | bit));
+		if ((current & bit) != 0)
+			Metrics.increment("status.events.coalesced");
+		schedule();
+	}
+
+	private void schedule() {
+		if (!scheduled.compareAndSet(false, true))
+			return;
+		try {
+			getExecutor().execute(this);
+		} catch (RejectedExecutionException e) { // Shutting down
+			scheduled.set(false);
+		}
+	}
+
+	@Override
+	public void run() {
+		int events;
+		while ((events = pending.getAndSet(0)) != 0) {
+			// The events are declared in order of their rank
+			for (StatusListener.Event event : EVENTS) {
+				if ((events & (1 << event.ordinal())) == 0 || event.rank() <= delivered)
+					continue;
+				delivered = event.rank();
+				try {
+					listener.onStatus(session, event);
+				} catch (RuntimeException e) {
+					logger.error("Status listener failed", e);
+				}
+				Metrics.increment("status.events.delivered");
+			}
+		}
+		scheduled.set(false);
+
+		// An event may have been posted after none were found but before we unset the flag
+		if (pending.get() != 0)
+			schedule();
+	}
+}
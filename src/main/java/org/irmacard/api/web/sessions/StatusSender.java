@@ -0,0 +1,184 @@
+package org.irmacard.api.web.sessions;
+
+import org.irmacard.api.web.ApiConfiguration;
+import org.irmacard.api.web.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the sends of a single {@link StatusListener} to its client (e.g. writing to its socket or event
+ * stream, which may block) one at a time and in order, on a shared pool of status_send_threads threads
+ * that is separate from the one that delivers status updates, so that a slow client only holds up its
+ * own updates. A send that takes longer than status_write_timeout seconds is interrupted, after which
+ * the connection to the client is aborted and further sends are discarded, so that stalled clients
+ * cannot occupy the pool. (No bound on the number of pending sends is needed: a listener gets at most
+ * one update of each rank, see {@link StatusMailbox}.)
+ */
+public class StatusSender implements Runnable {
+	private static Logger logger = LoggerFactory.getLogger(StatusSender.class);
+
+	private static volatile ExecutorService executor;
+	private static volatile ScheduledThreadPoolExecutor watchdog;
+
+	private final Runnable abort;
+	private final long writeTimeout;
+	private final ConcurrentLinkedQueue<Runnable> sends = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private Thread sending; // The thread running the current send, if any; guarded by this
+	private volatile boolean aborted = false;
+
+	/**
+	 * @param abort Closes the connection to the client after a send timed out
+	 */
+	public StatusSender(Runnable abort) {
+		this(abort, ApiConfiguration.getInstance().getStatusWriteTimeout() * 1000L);
+	}
+
+	StatusSender(Runnable abort, long writeTimeout) {
+		this.abort = abort;
+		this.writeTimeout = writeTimeout;
+	}
+
+	private static ThreadFactory threadFactory(final String name) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			@Override public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, name + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	private static ExecutorService getExecutor() {
+		if (executor == null) {
+			synchronized (StatusSender.class) {
+				if (executor == null) {
+					int threads = ApiConfiguration.getInstance().getStatusSendThreads();
+					executor = Executors.newFixedThreadPool(threads, threadFactory("status-send-"));
+				}
+			}
+		}
+		return executor;
+	}
+
+	private static ScheduledThreadPoolExecutor getWatchdog() {
+		if (watchdog == null) {
+			synchronized (StatusSender.class) {
+				if (watchdog == null) {
+					ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(1, threadFactory("status-watchdog-"));
+					pool.setRemoveOnCancelPolicy(true); // Nearly all timeouts are cancelled
+					watchdog = pool;
+				}
+			}
+		}
+		return watchdog;
+	}
+
+	public static synchronized void shutdown() {
+		if (executor != null)
+			executor.shutdownNow();
+		if (watchdog != null)
+			watchdog.shutdownNow();
+		executor = null;
+		watchdog = null;
+	}
+
+	/**
+	 * Run the specified send after the sends that were passed earlier, unless the connection was aborted.
+	 */
+	public void send(Runnable send) {
+		if (aborted)
+			return;
+		sends.add(send);
+		schedule();
+	}
+
+	private void schedule() {
+		if (!scheduled.compareAndSet(false, true))
+			return;
+		try {
+			getExecutor().execute(this);
+		} catch (RejectedExecutionException e) { // Shutting down
+			scheduled.set(false);
+		}
+	}
+
+	@Override
+	public void run() {
+		Runnable send;
+		while (!aborted && (send = sends.poll()) != null) {
+			ScheduledFuture<?> timeout = startTimeout();
+			try {
+				send.run();
+			} catch (RuntimeException e) {
+				logger.error("Sending status update failed", e);
+			} finally {
+				stopTimeout(timeout);
+			}
+		}
+		if (aborted)
+			sends.clear();
+		scheduled.set(false);
+
+		// A send may have been added after the queue was found empty but before we unset the flag
+		if (!aborted && !sends.isEmpty())
+			schedule();
+	}
+
+	private ScheduledFuture<?> startTimeout() {
+		synchronized (this) {
+			sending = Thread.currentThread();
+		}
+		try {
+			return getWatchdog().schedule(new Runnable() {
+				@Override public void run() {
+					timedOut();
+				}
+			}, writeTimeout, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) { // Shutting down
+			return null;
+		}
+	}
+
+	private void stopTimeout(ScheduledFuture<?> timeout) {
+		if (timeout != null)
+			timeout.cancel(false);
+		synchronized (this) {
+			sending = null;
+		}
+		Thread.interrupted(); // Don't pass an interrupt by timedOut() on to the next task of this thread
+
+		if (aborted) {
+			try {
+				abort.run();
+			} catch (RuntimeException e) {
+				logger.error("Aborting status connection failed", e);
+			}
+		}
+	}
+
+	/**
+	 * Interrupt the current send, which makes blocking writes to the client fail, and abort the
+	 * connection once it has returned.
+	 */
+	private synchronized void timedOut() {
+		if (sending == null)
+			return;
+		aborted = true;
+		Metrics.increment("status.sends.timed_out");
+		logger.warn("Sending status update took more than {} ms, aborting connection", writeTimeout);
+		sending.interrupt();
+	}
+}
@@ -41,6 +41,7 @@ import org.irmacard.credentials.idemix.proofs.ProofD;
 public class VerificationSession extends IrmaSession<ServiceProviderRequest, DisclosureProofRequest> {
     private DisclosureProofResult result;
     private ProofD proof;
+    private int validity; // Set when the session is compacted
 
     public VerificationSession() {
         super();
@@ -58,12 +59,36 @@ public class VerificationSession extends IrmaSession<ServiceProviderRequest, Dis
         this.proof = proof;
     }
 
+    /**
+     * @return The validity of the result JWT, which survives {@link #compact()}
+     */
+    public int getValidity() {
+        ServiceProviderRequest request = getClientRequest();
+        return request != null ? request.getValidity() : validity;
+    }
+
+    @Override
+    protected void compact() {
+        ServiceProviderRequest request = getClientRequest();
+        if (request != null)
+            validity = request.getValidity();
+        proof = null;
+        super.compact();
+    }
+
     public DisclosureProofResult getResult() {
         return result;
     }
 
-    public void setResult(DisclosureProofResult result) {
+    /**
+     * Store the result and move the session to DONE.
+     * @return false if the session was not CONNECTED, in which case the result is discarded
+     */
+    public boolean setResult(DisclosureProofResult result) {
         this.result = result;
-        setStatusDone();
+        if (setStatusDone())
+            return true;
+        this.result = null;
+        return false;
     }
 }
@@ -0,0 +1,92 @@
+package org.irmacard.api.web;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import static org.junit.Assert.*;
+
+public class AuthorizationIndexTest {
+	private static final int ATTRIBUTE = AuthorizationIndex.ATTRIBUTE_WILDCARD_DEPTH;
+	private static final int CREDENTIAL = AuthorizationIndex.CREDENTIAL_WILDCARD_DEPTH;
+
+	private static HashMap<String, ArrayList<String>> authorizations() {
+		HashMap<String, ArrayList<String>> authorizations = new HashMap<>();
+		authorizations.put("everything", new ArrayList<>(Arrays.asList("*")));
+		authorizations.put("scheme", new ArrayList<>(Arrays.asList("irma-demo.*")));
+		authorizations.put("issuer", new ArrayList<>(Arrays.asList("irma-demo.MijnOverheid.*")));
+		authorizations.put("credential", new ArrayList<>(Arrays.asList("irma-demo.MijnOverheid.ageLower.*")));
+		authorizations.put("attribute", new ArrayList<>(Arrays.asList(
+				"irma-demo.MijnOverheid.ageLower.over18", "irma-demo.RU.studentCard")));
+		authorizations.put("*", new ArrayList<>(Arrays.asList("irma-demo.RU.*")));
+		return authorizations;
+	}
+
+	@Test
+	public void attributes() {
+		AuthorizationIndex index = new AuthorizationIndex(authorizations(), true);
+		String over18 = "irma-demo.MijnOverheid.ageLower.over18";
+		String over21 = "irma-demo.MijnOverheid.ageLower.over21";
+		String name = "irma-demo.MijnOverheid.fullName.firstname";
+		String student = "irma-demo.RU.studentCard.studentID";
+		String other = "pbdf.pbdf.email.email";
+
+		for (String attribute : new String[] {over18, over21, name, student, other})
+			assertTrue(index.permits("everything", attribute, ATTRIBUTE));
+		assertTrue(index.permits("scheme", name, ATTRIBUTE));
+		assertFalse(index.permits("scheme", other, ATTRIBUTE));
+		assertTrue(index.permits("issuer", name, ATTRIBUTE));
+		assertFalse(index.permits("issuer", student, ATTRIBUTE));
+		assertTrue(index.permits("credential", over21, ATTRIBUTE));
+		assertFalse(index.permits("credential", name, ATTRIBUTE));
+		assertTrue(index.permits("attribute", over18, ATTRIBUTE));
+		assertFalse(index.permits("attribute", over21, ATTRIBUTE));
+		assertFalse(index.permits("attribute", "irma-demo.MijnOverheid.ageLower", ATTRIBUTE));
+
+		// A credential listed without wildcard does not authorize its attributes
+		assertFalse(index.permits("attribute", student, ATTRIBUTE));
+
+		// Unlisted clients fall back to "*", listed clients do not
+		assertTrue(index.permits("unknown", student, ATTRIBUTE));
+		assertFalse(index.permits("unknown", name, ATTRIBUTE));
+		assertFalse(index.permits("issuer", student, ATTRIBUTE));
+	}
+
+	@Test
+	public void credentials() {
+		AuthorizationIndex index = new AuthorizationIndex(authorizations(), false);
+		assertTrue(index.permits("issuer", "irma-demo.MijnOverheid.ageLower", CREDENTIAL));
+		assertTrue(index.permits("attribute", "irma-demo.RU.studentCard", CREDENTIAL));
+		assertFalse(index.permits("attribute", "irma-demo.RU.other", CREDENTIAL));
+
+		// Credential wildcards apply only to attributes
+		assertFalse(index.permits("credential", "irma-demo.MijnOverheid.ageLower", CREDENTIAL));
+
+		// No fallback to "*" for identity providers
+		assertFalse(index.permits("unknown", "irma-demo.RU.studentCard", CREDENTIAL));
+	}
+
+	@Test
+	public void manyAttributes() {
+		HashMap<String, ArrayList<String>> authorizations = new HashMap<>();
+		ArrayList<String> listed = new ArrayList<>();
+		String[] requested = new String[24];
+		for (int i = 0; i < requested.length; i++) {
+			requested[i] = "pbdf.issuer" + (i % 4) + ".credential" + (i % 8) + ".attribute" + i;
+			listed.add(requested[i]);
+		}
+		authorizations.put("sp", listed);
+		AuthorizationIndex index = new AuthorizationIndex(authorizations, true);
+
+		for (String attribute : requested) {
+			assertTrue(attribute, index.permits("sp", attribute, ATTRIBUTE));
+			// Sibling attributes in the same credential are not listed
+			assertFalse(attribute, index.permits("sp", attribute + "x", ATTRIBUTE));
+		}
+		assertFalse(index.permits("sp", "pbdf.issuer0.credential0.attribute1", ATTRIBUTE));
+		assertFalse(index.permits("sp", "pbdf.issuer4.credential0.attribute0", ATTRIBUTE));
+		assertFalse(index.permits("other", requested[0], ATTRIBUTE));
+	}
+}
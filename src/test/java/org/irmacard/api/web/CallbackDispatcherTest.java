@@ -0,0 +1,167 @@
+package org.irmacard.api.web;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Delivers callbacks to a local HTTP server that answers with configurable status codes.
+ */
+public class CallbackDispatcherTest {
+	private HttpServer server;
+	private CallbackDispatcher dispatcher;
+	private final Queue<Integer> statuses = new ConcurrentLinkedQueue<>();
+	private final Queue<String> received = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger requests = new AtomicInteger();
+	private final AtomicInteger concurrent = new AtomicInteger();
+	private final AtomicInteger maxConcurrent = new AtomicInteger();
+	private volatile long handlerDelay = 0;
+
+	@Before
+	public void setUp() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/callback", new HttpHandler() {
+			@Override public void handle(HttpExchange exchange) throws IOException {
+				int current = concurrent.incrementAndGet();
+				int seen;
+				while ((seen = maxConcurrent.get()) < current && !maxConcurrent.compareAndSet(seen, current))
+					continue;
+				try {
+					requests.incrementAndGet();
+					received.add(read(exchange.getRequestBody()));
+					if (handlerDelay > 0)
+						Thread.sleep(handlerDelay);
+					Integer status = statuses.poll();
+					exchange.sendResponseHeaders(status == null ? 200 : status, -1);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					concurrent.decrementAndGet();
+					exchange.close();
+				}
+			}
+		});
+		server.setExecutor(Executors.newFixedThreadPool(16));
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		if (dispatcher != null)
+			dispatcher.close();
+		server.stop(0);
+	}
+
+	private URL url() throws IOException {
+		return new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/callback/token");
+	}
+
+	private static String read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int count;
+		while ((count = in.read(buffer)) > 0)
+			out.write(buffer, 0, count);
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private void awaitIdle() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (dispatcher.getPending() > 0 && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(0, dispatcher.getPending());
+	}
+
+	@Test
+	public void delivers() throws Exception {
+		dispatcher = new CallbackDispatcher(2, 10, 2, 3, 10, 1000);
+		assertTrue(dispatcher.dispatch(url(), "jwt"));
+		awaitIdle();
+		assertEquals(1, requests.get());
+		assertEquals("jwt", received.peek());
+	}
+
+	@Test
+	public void retriesServerErrors() throws Exception {
+		dispatcher = new CallbackDispatcher(2, 10, 2, 3, 10, 1000);
+		statuses.add(503);
+		statuses.add(500);
+		dispatcher.dispatch(url(), "jwt");
+		awaitIdle();
+		assertEquals(3, requests.get());
+	}
+
+	@Test
+	public void givesUp() throws Exception {
+		dispatcher = new CallbackDispatcher(2, 10, 2, 3, 10, 1000);
+		for (int i = 0; i < 5; i++)
+			statuses.add(503);
+		dispatcher.dispatch(url(), "jwt");
+		awaitIdle();
+		assertEquals(3, requests.get());
+	}
+
+	@Test
+	public void doesNotRetryClientErrors() throws Exception {
+		dispatcher = new CallbackDispatcher(2, 10, 2, 3, 10, 1000);
+		statuses.add(404);
+		dispatcher.dispatch(url(), "jwt");
+		awaitIdle();
+		assertEquals(1, requests.get());
+	}
+
+	@Test
+	public void retriesUnsendableCallbacks() throws Exception {
+		dispatcher = new CallbackDispatcher(2, 10, 2, 3, 10, 1000);
+		final AtomicInteger done = new AtomicInteger();
+		assertTrue(dispatcher.dispatch(new URL("http://127.0.0.1/call back"), "jwt", new Runnable() {
+			@Override public void run() {
+				done.incrementAndGet();
+			}
+		}));
+		awaitIdle();
+		assertEquals(1, done.get());
+		assertEquals(0, requests.get());
+	}
+
+	@Test
+	public void limitsConcurrencyPerHost() throws Exception {
+		dispatcher = new CallbackDispatcher(8, 100, 2, 1, 10, 5000);
+		handlerDelay = 50;
+		for (int i = 0; i < 20; i++)
+			assertTrue(dispatcher.dispatch(url(), "jwt" + i));
+		awaitIdle();
+		assertEquals(20, requests.get());
+		assertTrue("max concurrent: " + maxConcurrent.get(), maxConcurrent.get() <= 2);
+		assertEquals(0, dispatcher.getBusyHosts());
+	}
+
+	@Test
+	public void boundsQueue() throws Exception {
+		dispatcher = new CallbackDispatcher(1, 3, 1, 1, 10, 5000);
+		handlerDelay = 200;
+		int accepted = 0;
+		for (int i = 0; i < 10; i++)
+			if (dispatcher.dispatch(url(), "jwt" + i))
+				accepted++;
+		assertEquals(3, accepted);
+		awaitIdle();
+		assertEquals(3, requests.get());
+	}
+}
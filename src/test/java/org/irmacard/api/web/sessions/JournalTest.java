@@ -0,0 +1,159 @@
+package org.irmacard.api.web.sessions;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class JournalTest {
+	private static final int SEGMENT_SIZE = 64 * 1024;
+
+	private File directory;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("journal").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		File[] files = directory.listFiles();
+		if (files != null)
+			for (File f : files)
+				f.delete();
+		directory.delete();
+	}
+
+	private List<String> replay() throws IOException {
+		final List<String> records = new ArrayList<>();
+		Journal journal = new Journal(directory, SEGMENT_SIZE);
+		journal.replay(new Journal.Visitor() {
+			@Override public void record(byte[] payload) {
+				records.add(new String(payload, StandardCharsets.UTF_8));
+			}
+		});
+		journal.close();
+		return records;
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void appendAndReplay() throws Exception {
+		Journal journal = new Journal(directory, SEGMENT_SIZE);
+		for (int i = 0; i < 5000; i++)
+			journal.sync(journal.append(bytes("record" + i), true).sequence);
+		assertTrue(journal.segmentCount() > 1);
+		journal.close();
+
+		List<String> records = replay();
+		assertEquals(5000, records.size());
+		for (int i = 0; i < 5000; i++)
+			assertEquals("record" + i, records.get(i));
+	}
+
+	@Test
+	public void deletesReleasedSegmentsInOrder() throws Exception {
+		Journal journal = new Journal(directory, SEGMENT_SIZE);
+		byte[] record = new byte[SEGMENT_SIZE / 4];
+		Journal.Position first = journal.append(record, true);
+		List<Journal.Position> positions = new ArrayList<>();
+		for (int i = 0; i < 10; i++)
+			positions.add(journal.append(record, true));
+		int segments = journal.segmentCount();
+		assertTrue(segments > 3);
+
+		// Releasing newer segments does not delete anything while the oldest one is retained
+		for (Journal.Position position : positions)
+			journal.release(position.segment);
+		assertEquals(segments, journal.segmentCount());
+
+		journal.release(first.segment);
+		assertEquals(1, journal.segmentCount());
+		journal.close();
+	}
+
+	@Test
+	public void ignoresTornRecord() throws Exception {
+		Journal journal = new Journal(directory, SEGMENT_SIZE);
+		journal.append(bytes("first"), true);
+		journal.sync(journal.append(bytes("second"), true).sequence);
+		journal.close();
+
+		// Corrupt the last byte of the second record
+		File segment = directory.listFiles()[0];
+		try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+			file.seek(8 + "first".length() + 8 + "second".length() - 1);
+			file.write('X');
+		}
+
+		List<String> records = replay();
+		assertEquals(1, records.size());
+		assertEquals("first", records.get(0));
+	}
+
+	@Test
+	public void keepsReplayedSegmentsUntilFinished() throws Exception {
+		Journal journal = new Journal(directory, SEGMENT_SIZE);
+		journal.sync(journal.append(bytes("old"), false).sequence);
+		journal.close();
+
+		journal = new Journal(directory, SEGMENT_SIZE);
+		journal.sync(journal.append(bytes("new"), true).sequence);
+		assertEquals(2, journal.segmentCount());
+		journal.finishReplay();
+		assertEquals(1, journal.segmentCount());
+		journal.close();
+
+		List<String> records = replay();
+		assertEquals(1, records.size());
+		assertEquals("new", records.get(0));
+	}
+
+	@Test
+	public void groupCommit() throws Exception {
+		final int threads = 16;
+		final int recordsPerThread = 500;
+		final Journal journal = new Journal(directory, SEGMENT_SIZE); // Rotates while the threads append
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<?>> futures = new ArrayList<>();
+
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			futures.add(pool.submit(new Callable<Void>() {
+				@Override public Void call() throws Exception {
+					for (int i = 0; i < recordsPerThread; i++)
+						journal.sync(journal.append(bytes(thread + ":" + i), true).sequence);
+					return null;
+				}
+			}));
+		}
+		for (Future<?> future : futures)
+			future.get();
+		pool.shutdown();
+		assertTrue(journal.segmentCount() > 1);
+		journal.close();
+
+		// Every synced record is there, and the records of each thread are in the order it appended them
+		List<String> records = replay();
+		assertEquals(threads * recordsPerThread, records.size());
+		int[] next = new int[threads];
+		for (String record : records) {
+			String[] parts = record.split(":");
+			int thread = Integer.parseInt(parts[0]);
+			assertEquals(record, next[thread]++, Integer.parseInt(parts[1]));
+		}
+	}
+}
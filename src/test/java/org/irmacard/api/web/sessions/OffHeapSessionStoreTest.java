@@ -0,0 +1,106 @@
+package org.irmacard.api.web.sessions;
+
+import org.irmacard.api.common.AttributeDisjunctionList;
+import org.irmacard.api.common.disclosure.DisclosureProofRequest;
+import org.irmacard.api.common.disclosure.ServiceProviderRequest;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class OffHeapSessionStoreTest {
+	private static VerificationSession newSession(String data) {
+		DisclosureProofRequest request = new DisclosureProofRequest(null, null, new AttributeDisjunctionList(1));
+		return new VerificationSession(new ServiceProviderRequest(data, request, 60));
+	}
+
+	@Test
+	public void idleSessionIsPromotedOnce() {
+		OffHeapSessionStore<VerificationSession> store = new OffHeapSessionStore<>();
+		VerificationSession session = newSession("offheap");
+		String token = session.getSessionToken();
+		store.put(session);
+		assertEquals(1, store.size());
+
+		VerificationSession restored = store.get(token);
+		assertNotNull(restored);
+		assertNotSame(session, restored);
+		assertEquals(token, restored.getSessionToken());
+		assertEquals("offheap", restored.getClientRequest().getData());
+		assertEquals(IrmaSession.Status.INITIALIZED, restored.getStatus());
+		assertTrue(restored.getRemainingMillis() > 0);
+
+		// From now on the session lives on the heap
+		assertSame(restored, store.get(token));
+		assertEquals(1, store.size());
+
+		assertSame(restored, store.remove(token));
+		assertNull(store.get(token));
+		assertEquals(0, store.size());
+		restored.suspendRemoval();
+	}
+
+	@Test
+	public void peekDoesNotPromote() {
+		OffHeapSessionStore<VerificationSession> store = new OffHeapSessionStore<>();
+		VerificationSession session = newSession("peek");
+		String token = session.getSessionToken();
+		store.put(session);
+
+		VerificationSession first = store.peek(token);
+		VerificationSession second = store.peek(token);
+		assertNotNull(first);
+		assertNotSame(first, second);
+		assertEquals("peek", first.getClientRequest().getData());
+		assertEquals(IrmaSession.Status.INITIALIZED, first.getStatus());
+
+		// Once promoted, peeking returns the session itself
+		VerificationSession promoted = store.get(token);
+		assertNotSame(first, promoted);
+		assertSame(promoted, store.peek(token));
+
+		store.remove(token);
+		assertNull(store.peek(token));
+		promoted.suspendRemoval();
+	}
+
+	@Test
+	public void promotedSessionKeepsItsExpiry() throws InterruptedException {
+		OffHeapSessionStore<VerificationSession> store = new OffHeapSessionStore<>();
+		VerificationSession session = newSession("expiry");
+		long remaining = session.getRemainingMillis();
+		store.put(session);
+		Thread.sleep(200);
+
+		// The time spent off-heap counts towards its lifetime
+		VerificationSession promoted = store.get(session.getSessionToken());
+		assertTrue(promoted.getRemainingMillis() <= remaining - 200);
+		store.remove(session.getSessionToken());
+		promoted.suspendRemoval();
+	}
+
+	@Test
+	public void manyIdleSessions() {
+		OffHeapSessionStore<VerificationSession> store = new OffHeapSessionStore<>();
+		String[] tokens = new String[10000];
+		for (int i = 0; i < tokens.length; i++) {
+			VerificationSession session = newSession(Integer.toString(i));
+			tokens[i] = session.getSessionToken();
+			store.put(session);
+		}
+
+		assertEquals(tokens.length, store.size());
+		for (int i = 0; i < tokens.length; i += 2) {
+			store.remove(tokens[i]);
+			assertNull(store.get(tokens[i]));
+		}
+		assertEquals(tokens.length / 2, store.size());
+
+		for (int i = 1; i < tokens.length; i += 2) {
+			VerificationSession session = store.get(tokens[i]);
+			assertEquals(Integer.toString(i), session.getClientRequest().getData());
+			store.remove(tokens[i]);
+			session.suspendRemoval();
+		}
+		assertEquals(0, store.size());
+	}
+}
@@ -0,0 +1,45 @@
+package org.irmacard.api.web.sessions;
+
+import org.irmacard.api.common.AttributeDisjunctionList;
+import org.irmacard.api.common.disclosure.DisclosureProofRequest;
+import org.irmacard.api.common.disclosure.ServiceProviderRequest;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class SessionSnapshotTest {
+	private static final int SESSIONS = 10000;
+
+	@Test
+	public void writeAndRestore() throws Exception {
+		Sessions<VerificationSession> sessions = Sessions.getVerificationSessions();
+		String[] tokens = new String[SESSIONS];
+		for (int i = 0; i < SESSIONS; i++) {
+			DisclosureProofRequest request = new DisclosureProofRequest(null, null, new AttributeDisjunctionList(1));
+			VerificationSession session = new VerificationSession(new ServiceProviderRequest("snapshot" + i, request, 60));
+			sessions.addSession(session);
+			tokens[i] = session.getSessionToken();
+		}
+
+		File file = File.createTempFile("sessions", ".snapshot");
+		assertTrue(SessionSnapshot.write(file) >= SESSIONS);
+
+		for (String token : tokens)
+			sessions.getSession(token).close();
+		assertNull(sessions.getSession(tokens[0]));
+
+		assertTrue(SessionSnapshot.restore(file) >= SESSIONS);
+		assertFalse(file.exists());
+
+		for (int i = 0; i < SESSIONS; i++) {
+			VerificationSession session = sessions.getSession(tokens[i]);
+			assertEquals("snapshot" + i, session.getClientRequest().getData());
+			assertEquals(IrmaSession.Status.INITIALIZED, session.getStatus());
+			assertTrue(session.getRemainingMillis() > 0);
+			assertTrue(session.getRemainingMillis() <= 60 * 1000);
+			session.close();
+		}
+	}
+}
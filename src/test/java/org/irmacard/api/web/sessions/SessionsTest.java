@@ -0,0 +1,124 @@
+package org.irmacard.api.web.sessions;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Hammers the session store from many threads at once.
+ */
+public class SessionsTest {
+	private static final int THREADS = 16;
+	private static final int SESSIONS_PER_THREAD = 2000;
+
+	@Test
+	public void concurrentAddGetRemove() throws Exception {
+		final Sessions<VerificationSession> sessions = Sessions.getVerificationSessions();
+		final int initialSize = sessions.size();
+		final CyclicBarrier barrier = new CyclicBarrier(THREADS);
+		final AtomicInteger lost = new AtomicInteger();
+
+		ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+		List<Future<?>> futures = new ArrayList<>(THREADS);
+		for (int t = 0; t < THREADS; t++) {
+			futures.add(pool.submit(new Callable<Void>() {
+				@Override public Void call() throws Exception {
+					List<VerificationSession> mine = new ArrayList<>(SESSIONS_PER_THREAD);
+					for (int i = 0; i < SESSIONS_PER_THREAD; i++)
+						mine.add(new VerificationSession());
+
+					barrier.await();
+					for (VerificationSession session : mine)
+						sessions.addSession(session);
+					for (VerificationSession session : mine)
+						if (sessions.getSession(session.getSessionToken()) != session)
+							lost.incrementAndGet();
+					for (VerificationSession session : mine)
+						Sessions.removeSession(session.getSessionToken());
+					for (VerificationSession session : mine)
+						if (sessions.getSession(session.getSessionToken()) != null)
+							lost.incrementAndGet();
+					return null;
+				}
+			}));
+		}
+
+		for (Future<?> future : futures)
+			future.get(60, TimeUnit.SECONDS);
+		pool.shutdown();
+
+		assertEquals(0, lost.get());
+		assertEquals(initialSize, sessions.size());
+	}
+
+	@Test
+	public void findAnySessionDuringConcurrentRemoval() throws Exception {
+		final List<SignatureSession> all = new ArrayList<>();
+		for (int i = 0; i < THREADS * 100; i++) {
+			SignatureSession session = new SignatureSession();
+			Sessions.getSignatureSessions().addSession(session);
+			all.add(session);
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+		List<Future<?>> futures = new ArrayList<>();
+		for (int t = 0; t < THREADS; t++) {
+			final int offset = t;
+			futures.add(pool.submit(new Callable<Void>() {
+				@Override public Void call() {
+					for (int i = offset; i < all.size(); i += THREADS) {
+						String token = all.get(i).getSessionToken();
+						assertSame(all.get(i), Sessions.findAnySession(token));
+						Sessions.removeSession(token);
+						assertNull(Sessions.findAnySession(token));
+					}
+					return null;
+				}
+			}));
+		}
+
+		for (Future<?> future : futures)
+			future.get(60, TimeUnit.SECONDS);
+		pool.shutdown();
+	}
+
+	@Test
+	public void concurrentTokenGeneration() throws Exception {
+		final int tokensPerThread = 10000;
+		final Set<String> tokens = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		final CyclicBarrier barrier = new CyclicBarrier(THREADS);
+
+		ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+		List<Future<?>> futures = new ArrayList<>(THREADS);
+		for (int t = 0; t < THREADS; t++) {
+			futures.add(pool.submit(new Callable<Void>() {
+				@Override public Void call() throws Exception {
+					String[] mine = new String[tokensPerThread];
+					barrier.await();
+					for (int i = 0; i < tokensPerThread; i++)
+						mine[i] = Sessions.generateSessionToken(VerificationSession.class);
+					tokens.addAll(Arrays.asList(mine));
+					return null;
+				}
+			}));
+		}
+
+		for (Future<?> future : futures)
+			future.get(60, TimeUnit.SECONDS);
+		pool.shutdown();
+
+		// No duplicates, across threads or within one
+		assertEquals(THREADS * tokensPerThread, tokens.size());
+		for (String token : tokens)
+			assertTrue(token, token.matches("v_[A-Za-z0-9]{" + SessionTokens.RANDOM_LENGTH + "}"));
+		assertSame(VerificationSession.class, Sessions.typeFor(tokens.iterator().next().charAt(0)));
+	}
+}
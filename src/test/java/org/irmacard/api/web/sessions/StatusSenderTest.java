@@ -0,0 +1,73 @@
+package org.irmacard.api.web.sessions;
+
+import org.junit.Test;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class StatusSenderTest {
+	private final AtomicInteger aborted = new AtomicInteger();
+	private final Runnable abort = new Runnable() {
+		@Override public void run() {
+			aborted.incrementAndGet();
+		}
+	};
+
+	private static Runnable append(final Queue<Integer> sent, final int value, final CountDownLatch latch) {
+		return new Runnable() {
+			@Override public void run() {
+				sent.add(value);
+				latch.countDown();
+			}
+		};
+	}
+
+	@Test
+	public void sendsInOrder() throws Exception {
+		StatusSender sender = new StatusSender(abort, 1000);
+		Queue<Integer> sent = new ConcurrentLinkedQueue<>();
+		CountDownLatch latch = new CountDownLatch(100);
+		for (int i = 0; i < 100; i++)
+			sender.send(append(sent, i, latch));
+
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		int expected = 0;
+		for (int value : sent)
+			assertEquals(expected++, value);
+		assertEquals(0, aborted.get());
+	}
+
+	@Test
+	public void abortsBlockedSends() throws Exception {
+		StatusSender sender = new StatusSender(abort, 100);
+		final CountDownLatch interrupted = new CountDownLatch(1);
+		sender.send(new Runnable() {
+			@Override public void run() {
+				try {
+					Thread.sleep(10000); // A client that does not read
+				} catch (InterruptedException e) {
+					interrupted.countDown();
+				}
+			}
+		});
+		assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+
+		// Later sends are discarded, and the thread is released
+		Queue<Integer> sent = new ConcurrentLinkedQueue<>();
+		sender.send(append(sent, 1, new CountDownLatch(1)));
+		CountDownLatch other = new CountDownLatch(1);
+		new StatusSender(abort, 1000).send(append(sent, 2, other));
+		assertTrue(other.await(5, TimeUnit.SECONDS));
+		assertFalse(sent.contains(1));
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (aborted.get() == 0 && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(1, aborted.get());
+	}
+}